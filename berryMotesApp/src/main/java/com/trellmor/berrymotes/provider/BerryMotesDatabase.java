@@ -0,0 +1,303 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.provider;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.trellmor.berrymotes.util.Settings;
+
+import java.io.File;
+
+/**
+ * Single database for emotes, subreddits and logs, shared by all providers so
+ * emotes and subreddits can be joined.
+ *
+ * Replaces the separate emotes.db, subreddits.db and logs.db files. Their
+ * rows are copied over on a background thread when the database is first
+ * used in a process. Reads don't wait for the copy, writes do. An old file is
+ * deleted once its rows were copied, if the copy failed it is kept and tried
+ * again the next time the app starts.
+ */
+class BerryMotesDatabase extends SQLiteOpenHelper {
+	private static final String TAG = BerryMotesDatabase.class.getName();
+
+	public static final int DATABASE_VERSION = 2;
+
+	private static final String DATABASE_NAME = "berrymotes.db";
+
+	private static final String IDX_EMOTES_SUBREDDIT = "idx_"
+			+ EmotesContract.Emote.TABLE_NAME + "_"
+			+ EmotesContract.Emote.COLUMN_SUBREDDIT;
+	private static final String IDX_SUBREDDITS_NAME = "idx_"
+			+ SubredditProvider.SubredditColumns.TABLE_SUBREDDITS + "_"
+			+ SubredditProvider.SubredditColumns.COLUMN_NAME;
+
+	private static final String SQL_CREATE_IDX_EMOTES_SUBREDDIT = "CREATE INDEX "
+			+ IDX_EMOTES_SUBREDDIT
+			+ " ON "
+			+ EmotesContract.Emote.TABLE_NAME
+			+ "(" + EmotesContract.Emote.COLUMN_SUBREDDIT + ")";
+	private static final String SQL_CREATE_IDX_SUBREDDITS_NAME = "CREATE INDEX "
+			+ IDX_SUBREDDITS_NAME
+			+ " ON "
+			+ SubredditProvider.SubredditColumns.TABLE_SUBREDDITS
+			+ "(" + SubredditProvider.SubredditColumns.COLUMN_NAME + ")";
+	// Sort keys of the subreddit list
+	private static final String SQL_CREATE_IDX_SUBREDDITS_NAME_NOCASE = "CREATE INDEX "
+			+ IDX_SUBREDDITS_NAME + "_nocase ON "
+			+ SubredditProvider.SubredditColumns.TABLE_SUBREDDITS
+			+ "(" + SubredditProvider.SubredditColumns.COLUMN_NAME + " COLLATE NOCASE)";
+	private static final String SQL_CREATE_IDX_SUBREDDITS_ADDED = "CREATE INDEX idx_"
+			+ SubredditProvider.SubredditColumns.TABLE_SUBREDDITS + "_"
+			+ SubredditProvider.SubredditColumns.COLUMN_ADDED + " ON "
+			+ SubredditProvider.SubredditColumns.TABLE_SUBREDDITS
+			+ "(" + SubredditProvider.SubredditColumns.COLUMN_ADDED + " DESC,"
+			+ SubredditProvider.SubredditColumns.COLUMN_NAME + " COLLATE NOCASE)";
+	private static final String SQL_CREATE_IDX_SUBREDDITS_SIZE = "CREATE INDEX idx_"
+			+ SubredditProvider.SubredditColumns.TABLE_SUBREDDITS + "_"
+			+ SubredditProvider.SubredditColumns.COLUMN_SIZE + " ON "
+			+ SubredditProvider.SubredditColumns.TABLE_SUBREDDITS
+			+ "(" + SubredditProvider.SubredditColumns.COLUMN_SIZE + " DESC,"
+			+ SubredditProvider.SubredditColumns.COLUMN_NAME + " COLLATE NOCASE)";
+
+	private static final String[] EMOTE_COLUMNS = new String[] {
+			EmotesContract.Emote._ID,
+			EmotesContract.Emote.COLUMN_NAME,
+			EmotesContract.Emote.COLUMN_APNG,
+			EmotesContract.Emote.COLUMN_IMAGE,
+			EmotesContract.Emote.COLUMN_HASH,
+			EmotesContract.Emote.COLUMN_INDEX,
+			EmotesContract.Emote.COLUMN_DELAY,
+			EmotesContract.Emote.COLUMN_SUBREDDIT };
+	private static final String[] SUBREDDIT_COLUMNS = new String[] {
+			SubredditProvider.SubredditColumns._ID,
+			SubredditProvider.SubredditColumns.COLUMN_NAME,
+			SubredditProvider.SubredditColumns.COLUMN_LAST_SYNC,
+			SubredditProvider.SubredditColumns.COLUMN_ENABLED,
+			SubredditProvider.SubredditColumns.COLUMN_ADDED,
+			SubredditProvider.SubredditColumns.COLUMN_SIZE,
+			SubredditProvider.SubredditColumns.COLUMN_USAGE };
+	private static final String[] LOG_COLUMNS = new String[] {
+			LogProvider.LogsColumns._ID,
+			LogProvider.LogsColumns.COLUMN_TIMESTAMP,
+			LogProvider.LogsColumns.COLUMN_LEVEL,
+			LogProvider.LogsColumns.COLUMN_MESSAGE,
+			LogProvider.LogsColumns.COLUMN_LOGGER,
+			LogProvider.LogsColumns.COLUMN_THREAD_NAME,
+			LogProvider.LogsColumns.COLUMN_CALLER_FILENAME,
+			LogProvider.LogsColumns.COLUMN_CALLER_CLASS,
+			LogProvider.LogsColumns.COLUMN_CALLER_METHOD,
+			LogProvider.LogsColumns.COLUMN_CALLER_LINE };
+
+	private static BerryMotesDatabase sInstance = null;
+
+	private final Context mContext;
+	// Guarded by this
+	private boolean mMigrated = false;
+
+	public static synchronized BerryMotesDatabase getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new BerryMotesDatabase(context.getApplicationContext());
+			sInstance.startMigration();
+		}
+		return sInstance;
+	}
+
+	private BerryMotesDatabase(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		mContext = context;
+	}
+
+	/**
+	 * Waits until the old databases were copied, so written rows don't
+	 * collide with copied ones
+	 */
+	@Override
+	public SQLiteDatabase getWritableDatabase() {
+		awaitMigration();
+		return super.getWritableDatabase();
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		DatabaseConfig.MAIN.onCreate(db);
+
+		db.execSQL(EmotesProvider.EmotesDatabase.SQL_CREATE_ENTRIES);
+		db.execSQL(EmotesProvider.EmotesDatabase.SQL_CREATE_IDX_ENTRIES_NAME);
+		db.execSQL(EmotesProvider.EmotesDatabase.SQL_CREATE_IDX_ENTRIES_HASH);
+		db.execSQL(SQL_CREATE_IDX_EMOTES_SUBREDDIT);
+
+		db.execSQL(SubredditProvider.SubredditsDatabase.SQL_CREATE_ENTRIES);
+		db.execSQL(SQL_CREATE_IDX_SUBREDDITS_NAME);
+		createSubredditSearch(db);
+
+		db.execSQL(LogProvider.LogsDatabase.SQL_CREATE_LOGS);
+
+		EmoteIndexSnapshot.invalidate(mContext);
+		PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+				.remove(Settings.KEY_SYNC_LAST_MODIFIED)
+				.remove(Settings.KEY_SYNC_LAST_COMPLETE).commit();
+	}
+
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		DatabaseConfig.MAIN.onOpen(db);
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		switch (oldVersion) {
+			case 1:
+				createSubredditSearch(db);
+				SubredditSearch.rebuild(db);
+				break;
+		}
+	}
+
+	private static void createSubredditSearch(SQLiteDatabase db) {
+		db.execSQL(SQL_CREATE_IDX_SUBREDDITS_NAME_NOCASE);
+		db.execSQL(SQL_CREATE_IDX_SUBREDDITS_ADDED);
+		db.execSQL(SQL_CREATE_IDX_SUBREDDITS_SIZE);
+		db.execSQL(SubredditSearch.SQL_CREATE_TRIGRAMS);
+		db.execSQL(SubredditSearch.SQL_CREATE_IDX_TRIGRAMS);
+		db.execSQL(SubredditSearch.SQL_CREATE_TRIGGER_DELETE);
+	}
+
+	private void startMigration() {
+		boolean legacy = false;
+		for (String name : new String[] { EmotesProvider.EmotesDatabase.DATABASE_NAME,
+				SubredditProvider.SubredditsDatabase.DATABASE_NAME, LogProvider.LogsDatabase.DATABASE_NAME }) {
+			legacy |= mContext.getDatabasePath(name).exists();
+		}
+		if (!legacy) {
+			synchronized (this) {
+				mMigrated = true;
+			}
+			return;
+		}
+
+		// Copying can take a while, keep it off the main thread
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					migrateLegacyDatabases();
+				} finally {
+					synchronized (BerryMotesDatabase.this) {
+						mMigrated = true;
+						BerryMotesDatabase.this.notifyAll();
+					}
+				}
+			}
+		}, "berrymotes-migrate").start();
+	}
+
+	private synchronized void awaitMigration() {
+		boolean interrupted = false;
+		while (!mMigrated) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Copy the rows of the old per provider database files
+	 */
+	private void migrateLegacyDatabases() {
+		// Create the schema
+		super.getWritableDatabase();
+
+		boolean emotes = migrate(new EmotesProvider.EmotesDatabase(mContext), EmotesProvider.EmotesDatabase.DATABASE_NAME,
+				EmotesContract.Emote.TABLE_NAME, EMOTE_COLUMNS);
+		boolean subreddits = migrate(new SubredditProvider.SubredditsDatabase(mContext),
+				SubredditProvider.SubredditsDatabase.DATABASE_NAME,
+				SubredditProvider.SubredditColumns.TABLE_SUBREDDITS, SUBREDDIT_COLUMNS);
+		migrate(new LogProvider.LogsDatabase(mContext), LogProvider.LogsDatabase.DATABASE_NAME,
+				LogProvider.LogsColumns.TABLE_LOGS, LOG_COLUMNS);
+
+		if (subreddits) {
+			// Copied rows have no search trigrams yet
+			SubredditSearch.rebuild(super.getWritableDatabase());
+			mContext.getContentResolver().notifyChange(SubredditProvider.CONTENT_URI_SUBREDDITS, null, false);
+		}
+		if (emotes) {
+			// Lists loaded before the copy finished are empty
+			EmoteIndexSnapshot.invalidate(mContext);
+			mContext.getContentResolver().notifyChange(EmotesContract.Emote.CONTENT_URI, null, false);
+		}
+	}
+
+	/**
+	 * @return true if a legacy database was migrated
+	 */
+	private boolean migrate(SQLiteOpenHelper legacy, String legacyName, String table, String[] columns) {
+		File file = mContext.getDatabasePath(legacyName);
+		if (!file.exists()) {
+			return false;
+		}
+
+		Log.i(TAG, "Migrating " + legacyName);
+		try {
+			// Bring the old file to its last schema version
+			legacy.getWritableDatabase();
+			legacy.close();
+
+			// Separate connection, attaching a database turns off write-ahead
+			// logging for the connection
+			SQLiteDatabase db = SQLiteDatabase.openDatabase(mContext.getDatabasePath(DATABASE_NAME).getPath(),
+					null, SQLiteDatabase.OPEN_READWRITE);
+			try {
+				db.execSQL("ATTACH DATABASE ? AS legacy", new Object[] { file.getPath() });
+				String columnList = TextUtils.join(",", columns);
+				db.beginTransaction();
+				try {
+					// Rows copied by an earlier attempt are kept
+					db.execSQL("INSERT OR IGNORE INTO main." + table + " (" + columnList + ") SELECT "
+							+ columnList + " FROM legacy." + table);
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+				db.execSQL("DETACH DATABASE legacy");
+			} finally {
+				db.close();
+			}
+		} catch (RuntimeException e) {
+			// Subreddit settings and logs can't be synced again, keep the old
+			// file and try again next time
+			Log.e(TAG, "Migrate " + legacyName, e);
+			return false;
+		}
+
+		mContext.deleteDatabase(legacyName);
+		return true;
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.trellmor.berrymotes.provider;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * Checks selections and sort orders passed in by other apps.
+ *
+ * Only comparisons of the known columns with arguments, literals and other
+ * known columns are accepted, combined with AND, OR, NOT and parentheses. Any
+ * other identifier, function call or statement is rejected, so a caller can't
+ * reach the other tables in the database through a subquery.
+ */
+class CallerSqlValidator {
+	private final HashSet<String> mColumns = new HashSet<>();
+
+	private ArrayList<String> mTokens;
+	private int mPos;
+
+	public CallerSqlValidator(String... columns) {
+		for (String column : columns) {
+			mColumns.add(column.toLowerCase(Locale.US));
+		}
+	}
+
+	/**
+	 * Check a {@code WHERE} clause
+	 *
+	 * @throws SecurityException if the selection is not allowed
+	 */
+	public synchronized void checkSelection(String selection) {
+		if (selection == null || selection.trim().isEmpty()) {
+			return;
+		}
+		start(selection);
+		expression();
+		end(selection);
+	}
+
+	/**
+	 * Check an {@code ORDER BY} clause
+	 *
+	 * @throws SecurityException if the sort order is not allowed
+	 */
+	public synchronized void checkSortOrder(String sortOrder) {
+		if (sortOrder == null || sortOrder.trim().isEmpty()) {
+			return;
+		}
+		start(sortOrder);
+		do {
+			column();
+			collate();
+			if (!accept("asc")) {
+				accept("desc");
+			}
+		} while (accept(","));
+		end(sortOrder);
+	}
+
+	private void start(String sql) {
+		mTokens = tokenize(sql);
+		mPos = 0;
+	}
+
+	private void end(String sql) {
+		if (mPos < mTokens.size()) {
+			throw new SecurityException("Unexpected " + mTokens.get(mPos) + " in " + sql);
+		}
+		mTokens = null;
+	}
+
+	private void expression() {
+		do {
+			do {
+				factor();
+			} while (accept("and"));
+		} while (accept("or"));
+	}
+
+	private void factor() {
+		if (accept("not")) {
+			factor();
+		} else if (accept("(")) {
+			expression();
+			expect(")");
+		} else {
+			predicate();
+		}
+	}
+
+	private void predicate() {
+		operand();
+		if (accept("is")) {
+			accept("not");
+			expect("null");
+			return;
+		}
+		if (accept("isnull") || accept("notnull")) {
+			return;
+		}
+		boolean not = accept("not");
+		if (accept("like") || accept("glob")) {
+			operand();
+			if (accept("escape")) {
+				operand();
+			}
+		} else if (accept("in")) {
+			expect("(");
+			do {
+				operand();
+			} while (accept(","));
+			expect(")");
+		} else if (accept("between")) {
+			operand();
+			expect("and");
+			operand();
+		} else if (!not && (accept("=") || accept("==") || accept("!=") || accept("<>")
+				|| accept("<") || accept("<=") || accept(">") || accept(">="))) {
+			operand();
+		} else {
+			throw unexpected();
+		}
+	}
+
+	private void operand() {
+		String token = next();
+		if (token.equals("-") && mPos < mTokens.size()) {
+			token = next();
+			if (!Character.isDigit(token.charAt(0))) {
+				throw new SecurityException("Unexpected " + token);
+			}
+		}
+		boolean literal = token.equals("?") || token.equals("null")
+				|| token.charAt(0) == '\'' || Character.isDigit(token.charAt(0));
+		if (!literal && !mColumns.contains(unquote(token))) {
+			throw new SecurityException("Unknown column " + token);
+		}
+		collate();
+	}
+
+	private void column() {
+		String token = next();
+		if (!mColumns.contains(unquote(token))) {
+			throw new SecurityException("Unknown column " + token);
+		}
+	}
+
+	private void collate() {
+		if (accept("collate")) {
+			if (!accept("nocase") && !accept("binary") && !accept("rtrim")) {
+				throw unexpected();
+			}
+		}
+	}
+
+	private boolean accept(String token) {
+		if (mPos < mTokens.size() && mTokens.get(mPos).equals(token)) {
+			mPos++;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(String token) {
+		if (!accept(token)) {
+			throw unexpected();
+		}
+	}
+
+	private String next() {
+		if (mPos >= mTokens.size()) {
+			throw new SecurityException("Unexpected end of SQL");
+		}
+		return mTokens.get(mPos++);
+	}
+
+	private SecurityException unexpected() {
+		if (mPos >= mTokens.size()) {
+			return new SecurityException("Unexpected end of SQL");
+		}
+		return new SecurityException("Unexpected " + mTokens.get(mPos));
+	}
+
+	private static String unquote(String token) {
+		if (token.length() > 1 && token.charAt(0) == '"') {
+			return token.substring(1, token.length() - 1).replace("\"\"", "\"");
+		}
+		return token;
+	}
+
+	/**
+	 * Split SQL into keywords, identifiers, literals and operators. Keywords
+	 * and identifiers are lower case, literals keep their quotes.
+	 */
+	static ArrayList<String> tokenize(String sql) {
+		ArrayList<String> tokens = new ArrayList<>();
+		int i = 0;
+		int length = sql.length();
+		while (i < length) {
+			char c = sql.charAt(i);
+			int start = i;
+			if (Character.isWhitespace(c)) {
+				i++;
+				continue;
+			} else if (c == '\'' || c == '"') {
+				// Quoted literal or identifier, the quote is escaped by doubling it
+				i++;
+				while (true) {
+					if (i >= length) {
+						throw new SecurityException("Unterminated quote in " + sql);
+					}
+					if (sql.charAt(i) == c) {
+						if (i + 1 < length && sql.charAt(i + 1) == c) {
+							i += 2;
+							continue;
+						}
+						i++;
+						break;
+					}
+					i++;
+				}
+				String token = sql.substring(start, i);
+				tokens.add(c == '"' ? token.toLowerCase(Locale.US) : token);
+				continue;
+			} else if (isIdentifierStart(c)) {
+				while (i < length && isIdentifierPart(sql.charAt(i))) {
+					i++;
+				}
+			} else if (c >= '0' && c <= '9') {
+				while (i < length && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+					i++;
+				}
+			} else if (c == '<' || c == '>' || c == '!' || c == '=') {
+				i++;
+				if (i < length && (sql.charAt(i) == '=' || (c == '<' && sql.charAt(i) == '>'))) {
+					i++;
+				}
+			} else if (c == '(' || c == ')' || c == ',' || c == '?' || c == '-') {
+				i++;
+				if (c == '-' && i < length && sql.charAt(i) == '-') {
+					throw new SecurityException("Comments are not allowed");
+				}
+			} else {
+				throw new SecurityException("Unexpected " + c + " in " + sql);
+			}
+			tokens.add(sql.substring(start, i).toLowerCase(Locale.US));
+		}
+		return tokens;
+	}
+
+	private static boolean isIdentifierStart(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+	}
+
+	private static boolean isIdentifierPart(char c) {
+		return isIdentifierStart(c) || (c >= '0' && c <= '9');
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.provider;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+/**
+ * Connection settings shared by the app databases.
+ *
+ * All databases use write-ahead logging so readers don't wait for the sync
+ * writers. The page size is tuned per database, and the time writers spend
+ * waiting for the database lock is recorded.
+ *
+ * The page cache keeps the SQLite default: PRAGMA cache_size only applies to
+ * the connection that runs it, and the framework has no hook to run it on
+ * every pooled WAL connection.
+ */
+public final class DatabaseConfig {
+	static final DatabaseConfig MAIN = new DatabaseConfig("berrymotes.db", 4096);
+
+	private static final DatabaseConfig[] ALL = new DatabaseConfig[] { MAIN };
+
+	private final String mName;
+	private final long mPageSize;
+
+	private long mWaits = 0;
+	private long mWaitTime = 0;
+	private long mMaxWait = 0;
+
+	DatabaseConfig(String name, long pageSize) {
+		mName = name;
+		mPageSize = pageSize;
+	}
+
+	/**
+	 * Call first in {@link android.database.sqlite.SQLiteOpenHelper#onCreate},
+	 * the page size can only be changed while the database is empty
+	 */
+	void onCreate(SQLiteDatabase db) {
+		db.setPageSize(mPageSize);
+	}
+
+	/**
+	 * Call from {@link android.database.sqlite.SQLiteOpenHelper#onOpen}
+	 */
+	void onOpen(SQLiteDatabase db) {
+		if (db.isReadOnly()) {
+			return;
+		}
+
+		db.enableWriteAheadLogging();
+	}
+
+	/**
+	 * Begin a write transaction and record how long it waited for the lock,
+	 * readers can continue while it runs
+	 */
+	void beginTransaction(SQLiteDatabase db) {
+		long start = SystemClock.elapsedRealtime();
+		db.beginTransactionNonExclusive();
+		recordWait(SystemClock.elapsedRealtime() - start);
+	}
+
+	/**
+	 * @param wait Milliseconds a transaction waited for the lock
+	 */
+	synchronized void recordWait(long wait) {
+		mWaits++;
+		mWaitTime += wait;
+		if (wait > mMaxWait) {
+			mMaxWait = wait;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return mName + ": " + mWaits + " transactions, waited " + mWaitTime + " ms, max " + mMaxWait + " ms";
+	}
+
+	/**
+	 * @return Lock wait statistics of all databases since the process started
+	 */
+	public static String getLockWaitStats() {
+		StringBuilder sb = new StringBuilder();
+		for (DatabaseConfig config : ALL) {
+			if (sb.length() > 0) {
+				sb.append("; ");
+			}
+			sb.append(config.toString());
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,475 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.provider;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compact, memory mapped copy of the emote grid index.
+ *
+ * Written by the sync after every run and read by the emote grid, so a cold
+ * start does not need to open emotes.db. Only the first frame (index 0) of
+ * every emote is stored, sorted by name.
+ *
+ * File layout (big endian):
+ * <pre>
+ * header:     magic, version, count, subreddit count, string table offset
+ * records:    count * (long id, int name, int image, int subreddit, int flags)
+ * subreddits: subreddit count * int string offset
+ * strings:    int length + UTF-8 bytes
+ * </pre>
+ * String offsets are relative to the start of the string table.
+ */
+public class EmoteIndexSnapshot {
+	private static final String TAG = EmoteIndexSnapshot.class.getName();
+
+	private static final String FILE_NAME = "emotes.idx";
+	private static final int MAGIC = 0x424d4958; // BMIX
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 5 * 4;
+	private static final int RECORD_SIZE = 8 + 4 * 4;
+	private static final int FLAG_APNG = 1;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final MappedByteBuffer mBuffer;
+	private final int mCount;
+	private final int mStringsOffset;
+	private final String[] mSubreddits;
+
+	private EmoteIndexSnapshot(MappedByteBuffer buffer) throws IOException {
+		mBuffer = buffer;
+
+		if (mBuffer.capacity() < HEADER_SIZE || mBuffer.getInt(0) != MAGIC
+				|| mBuffer.getInt(4) != VERSION) {
+			throw new IOException("Invalid emote index");
+		}
+		mCount = mBuffer.getInt(8);
+		int subredditCount = mBuffer.getInt(12);
+		mStringsOffset = mBuffer.getInt(16);
+		if (mStringsOffset != HEADER_SIZE + mCount * RECORD_SIZE + subredditCount * 4
+				|| mStringsOffset > mBuffer.capacity()) {
+			throw new IOException("Truncated emote index");
+		}
+
+		int pos = HEADER_SIZE + mCount * RECORD_SIZE;
+		mSubreddits = new String[subredditCount];
+		for (int i = 0; i < subredditCount; i++) {
+			mSubreddits[i] = readString(mBuffer.getInt(pos + i * 4));
+		}
+	}
+
+	public static File getFile(Context context) {
+		return new File(context.getFilesDir(), FILE_NAME);
+	}
+
+	/**
+	 * Map the current snapshot
+	 *
+	 * @return Snapshot or null if there is no valid snapshot
+	 */
+	public static EmoteIndexSnapshot open(Context context) {
+		File file = getFile(context);
+		if (!file.exists()) {
+			return null;
+		}
+
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				return new EmoteIndexSnapshot(buffer);
+			} finally {
+				// The mapping stays valid after the file is closed
+				raf.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Open emote index", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Remove the snapshot, readers will fall back to emotes.db
+	 */
+	public static void invalidate(Context context) {
+		File file = getFile(context);
+		if (file.exists()) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Write a new snapshot from the emotes database
+	 */
+	public static void write(Context context) throws IOException {
+		ContentResolver resolver = context.getContentResolver();
+		Cursor c = resolver.query(EmotesContract.Emote.CONTENT_URI, new String[] {
+						EmotesContract.Emote._ID,
+						EmotesContract.Emote.COLUMN_NAME,
+						EmotesContract.Emote.COLUMN_IMAGE,
+						EmotesContract.Emote.COLUMN_APNG,
+						EmotesContract.Emote.COLUMN_SUBREDDIT },
+				EmotesContract.Emote.COLUMN_INDEX + "=?", new String[] { "0" },
+				EmotesContract.Emote.COLUMN_NAME + " ASC");
+		if (c == null) {
+			return;
+		}
+
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		ByteArrayOutputStream strings = new ByteArrayOutputStream();
+		DataOutputStream recordsOut = new DataOutputStream(records);
+		DataOutputStream stringsOut = new DataOutputStream(strings);
+		HashMap<String, Integer> subredditIndex = new HashMap<>();
+		ArrayList<Integer> subredditOffsets = new ArrayList<>();
+		int count = 0;
+
+		try {
+			if (c.moveToFirst()) {
+				final int POS_ID = c.getColumnIndex(EmotesContract.Emote._ID);
+				final int POS_NAME = c.getColumnIndex(EmotesContract.Emote.COLUMN_NAME);
+				final int POS_IMAGE = c.getColumnIndex(EmotesContract.Emote.COLUMN_IMAGE);
+				final int POS_APNG = c.getColumnIndex(EmotesContract.Emote.COLUMN_APNG);
+				final int POS_SUBREDDIT = c.getColumnIndex(EmotesContract.Emote.COLUMN_SUBREDDIT);
+
+				do {
+					String subreddit = c.getString(POS_SUBREDDIT);
+					Integer index = subredditIndex.get(subreddit);
+					if (index == null) {
+						index = subredditOffsets.size();
+						subredditIndex.put(subreddit, index);
+						subredditOffsets.add(writeString(stringsOut, subreddit));
+					}
+
+					recordsOut.writeLong(c.getLong(POS_ID));
+					recordsOut.writeInt(writeString(stringsOut, c.getString(POS_NAME)));
+					recordsOut.writeInt(writeString(stringsOut, c.getString(POS_IMAGE)));
+					recordsOut.writeInt(index);
+					recordsOut.writeInt(c.getInt(POS_APNG) == 1 ? FLAG_APNG : 0);
+					count++;
+				} while (c.moveToNext());
+			}
+		} finally {
+			c.close();
+		}
+
+		recordsOut.flush();
+		stringsOut.flush();
+
+		File file = getFile(context);
+		File tmpFile = File.createTempFile(FILE_NAME, null, file.getParentFile());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+		try {
+			int stringsOffset = HEADER_SIZE + records.size() + subredditOffsets.size() * 4;
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(count);
+			out.writeInt(subredditOffsets.size());
+			out.writeInt(stringsOffset);
+			records.writeTo(out);
+			for (int offset : subredditOffsets) {
+				out.writeInt(offset);
+			}
+			strings.writeTo(out);
+		} finally {
+			out.close();
+		}
+
+		if (!tmpFile.renameTo(file)) {
+			tmpFile.delete();
+			throw new IOException("Failed to replace " + file);
+		}
+		Log.d(TAG, "Wrote emote index with " + count + " emotes");
+	}
+
+	private static int writeString(DataOutputStream out, String value) throws IOException {
+		int offset = out.size();
+		byte[] bytes = (value != null) ? value.getBytes(UTF_8) : new byte[0];
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		return offset;
+	}
+
+	private String readString(int offset) {
+		ByteBuffer buffer = mBuffer.duplicate();
+		buffer.position(mStringsOffset + offset);
+		int length = buffer.getInt();
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	public int getCount() {
+		return mCount;
+	}
+
+	private long getId(int record) {
+		return mBuffer.getLong(HEADER_SIZE + record * RECORD_SIZE);
+	}
+
+	private String getName(int record) {
+		return readString(mBuffer.getInt(HEADER_SIZE + record * RECORD_SIZE + 8));
+	}
+
+	private String getImage(int record) {
+		return readString(mBuffer.getInt(HEADER_SIZE + record * RECORD_SIZE + 12));
+	}
+
+	private String getSubreddit(int record) {
+		return mSubreddits[mBuffer.getInt(HEADER_SIZE + record * RECORD_SIZE + 16)];
+	}
+
+	private boolean isApng(int record) {
+		return (mBuffer.getInt(HEADER_SIZE + record * RECORD_SIZE + 20) & FLAG_APNG) != 0;
+	}
+
+	/**
+	 * Query the snapshot, with the same semantics as the emote grid SQL query
+	 *
+	 * @param projection Columns to return
+	 * @param names All of these must be part of the emote name
+	 * @param subreddits One of these must be part of the subreddit
+	 * @return Cursor ordered by name, or null if the projection has columns
+	 *         that are not in the snapshot
+	 */
+	public Cursor query(String[] projection, List<String> names, List<String> subreddits) {
+		if (projection == null) {
+			return null;
+		}
+		for (String column : projection) {
+			if (!isSnapshotColumn(column)) {
+				return null;
+			}
+		}
+
+		int[][] nameFilter = containsPatterns(names);
+		int[][] subredditFilter = containsPatterns(subreddits);
+
+		// Subreddit filter only depends on the subreddit table
+		boolean[] subredditMatch = null;
+		if (subredditFilter.length > 0) {
+			subredditMatch = new boolean[mSubreddits.length];
+			for (int i = 0; i < mSubreddits.length; i++) {
+				int[] subreddit = codePoints(mSubreddits[i]);
+				for (int[] filter : subredditFilter) {
+					if (like(filter, subreddit)) {
+						subredditMatch[i] = true;
+						break;
+					}
+				}
+			}
+		}
+
+		int[] rows = new int[mCount];
+		int rowCount = 0;
+		for (int i = 0; i < mCount; i++) {
+			if (subredditMatch != null
+					&& !subredditMatch[mBuffer.getInt(HEADER_SIZE + i * RECORD_SIZE + 16)]) {
+				continue;
+			}
+
+			if (nameFilter.length > 0) {
+				int[] name = codePoints(getName(i));
+				boolean match = true;
+				for (int[] filter : nameFilter) {
+					if (!like(filter, name)) {
+						match = false;
+						break;
+					}
+				}
+				if (!match) {
+					continue;
+				}
+			}
+
+			rows[rowCount++] = i;
+		}
+
+		return new SnapshotCursor(projection, rows, rowCount);
+	}
+
+	private static boolean isSnapshotColumn(String column) {
+		return EmotesContract.Emote._ID.equals(column)
+				|| EmotesContract.Emote.COLUMN_NAME.equals(column)
+				|| EmotesContract.Emote.COLUMN_IMAGE.equals(column)
+				|| EmotesContract.Emote.COLUMN_SUBREDDIT.equals(column)
+				|| EmotesContract.Emote.COLUMN_APNG.equals(column)
+				|| EmotesContract.Emote.COLUMN_INDEX.equals(column);
+	}
+
+	/**
+	 * The emote grid query matches {@code LIKE '%value%'}
+	 */
+	private static int[][] containsPatterns(List<String> values) {
+		if (values == null) {
+			return new int[0][];
+		}
+		int[][] result = new int[values.size()][];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = codePoints("%" + values.get(i) + "%");
+		}
+		return result;
+	}
+
+	private static int[] codePoints(String value) {
+		int[] result = new int[value.codePointCount(0, value.length())];
+		for (int i = 0, offset = 0; i < result.length; i++) {
+			result[i] = value.codePointAt(offset);
+			offset += Character.charCount(result[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * SQLite {@code LIKE}: % matches any sequence, _ any single character and
+	 * only ASCII letters are compared case insensitive
+	 */
+	static boolean like(String pattern, String value) {
+		return like(codePoints(pattern), codePoints(value));
+	}
+
+	private static boolean like(int[] pattern, int[] value) {
+		int p = 0;
+		int v = 0;
+		int wildcard = -1;
+		int wildcardValue = 0;
+		while (v < value.length) {
+			if (p < pattern.length && pattern[p] == '%') {
+				wildcard = p++;
+				wildcardValue = v;
+			} else if (p < pattern.length && (pattern[p] == '_'
+					|| foldAscii(pattern[p]) == foldAscii(value[v]))) {
+				p++;
+				v++;
+			} else if (wildcard >= 0) {
+				// Let the last % take one more character
+				p = wildcard + 1;
+				v = ++wildcardValue;
+			} else {
+				return false;
+			}
+		}
+		while (p < pattern.length && pattern[p] == '%') {
+			p++;
+		}
+		return p == pattern.length;
+	}
+
+	private static int foldAscii(int c) {
+		return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+	}
+
+	private class SnapshotCursor extends AbstractCursor {
+		private final String[] mColumns;
+		private final int[] mRows;
+		private final int mRowCount;
+
+		public SnapshotCursor(String[] projection, int[] rows, int rowCount) {
+			mColumns = projection;
+			mRows = rows;
+			mRowCount = rowCount;
+		}
+
+		@Override
+		public int getCount() {
+			return mRowCount;
+		}
+
+		@Override
+		public String[] getColumnNames() {
+			return mColumns;
+		}
+
+		@Override
+		public String getString(int column) {
+			int record = mRows[getPosition()];
+			String name = mColumns[column];
+			if (EmotesContract.Emote.COLUMN_NAME.equals(name)) {
+				return getName(record);
+			} else if (EmotesContract.Emote.COLUMN_IMAGE.equals(name)) {
+				return getImage(record);
+			} else if (EmotesContract.Emote.COLUMN_SUBREDDIT.equals(name)) {
+				return getSubreddit(record);
+			} else {
+				return String.valueOf(getLong(column));
+			}
+		}
+
+		@Override
+		public long getLong(int column) {
+			int record = mRows[getPosition()];
+			String name = mColumns[column];
+			if (EmotesContract.Emote._ID.equals(name)) {
+				return getId(record);
+			} else if (EmotesContract.Emote.COLUMN_APNG.equals(name)) {
+				return isApng(record) ? 1 : 0;
+			} else if (EmotesContract.Emote.COLUMN_INDEX.equals(name)) {
+				return 0;
+			} else {
+				throw new UnsupportedOperationException("Column not in emote index: " + name);
+			}
+		}
+
+		@Override
+		public short getShort(int column) {
+			return (short) getLong(column);
+		}
+
+		@Override
+		public int getInt(int column) {
+			return (int) getLong(column);
+		}
+
+		@Override
+		public float getFloat(int column) {
+			return getLong(column);
+		}
+
+		@Override
+		public double getDouble(int column) {
+			return getLong(column);
+		}
+
+		@Override
+		public boolean isNull(int column) {
+			return false;
+		}
+	}
+}
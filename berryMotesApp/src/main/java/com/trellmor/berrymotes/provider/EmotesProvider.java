@@ -19,21 +19,59 @@
 package com.trellmor.berrymotes.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Process;
 import android.preference.PreferenceManager;
 
 import com.trellmor.berrymotes.util.Settings;
 import com.trellmor.berrymotes.util.SelectionBuilder;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 public class EmotesProvider extends ContentProvider {
-	private EmotesDatabase mDatabaseHelper;
+	/**
+	 * {@link android.content.ContentResolver#call} methods to hold back change
+	 * notifications while a sync is running
+	 */
+	public static final String METHOD_BEGIN_SYNC = "begin_sync";
+	public static final String METHOD_END_SYNC = "end_sync";
+
+	private static final String[] COLUMNS = new String[] {
+			EmotesContract.Emote._ID,
+			EmotesContract.Emote.COLUMN_NAME,
+			EmotesContract.Emote.COLUMN_APNG,
+			EmotesContract.Emote.COLUMN_IMAGE,
+			EmotesContract.Emote.COLUMN_HASH,
+			EmotesContract.Emote.COLUMN_INDEX,
+			EmotesContract.Emote.COLUMN_DELAY,
+			EmotesContract.Emote.COLUMN_SUBREDDIT };
+
+	// The subreddits and logs tables share the database file, other apps
+	// only get the emote columns
+	private static final HashMap<String, String> sProjectionMap = new HashMap<>();
+	static {
+		for (String column : COLUMNS) {
+			sProjectionMap.put(column, column);
+		}
+	}
+	private static final CallerSqlValidator sValidator = new CallerSqlValidator(COLUMNS);
+
+	private BerryMotesDatabase mDatabaseHelper;
+	private NotificationCoalescer mNotifications;
 
 	private static final int ROUTE_EMOTES = 1;
 	private static final int ROUTE_EMOTES_ID = 2;
@@ -52,10 +90,28 @@ public class EmotesProvider extends ContentProvider {
 
 	@Override
 	public boolean onCreate() {
-		mDatabaseHelper = new EmotesDatabase(getContext());
+		mDatabaseHelper = BerryMotesDatabase.getInstance(getContext());
+		mNotifications = new NotificationCoalescer(getContext().getContentResolver());
 		return true;
 	}
 
+	@Override
+	public Bundle call(String method, String arg, Bundle extras) {
+		if ((METHOD_BEGIN_SYNC.equals(method) || METHOD_END_SYNC.equals(method))
+				&& isForeignCaller()) {
+			// Other apps could hold back notifications forever
+			throw new SecurityException("Method " + method + " is internal");
+		}
+		if (METHOD_BEGIN_SYNC.equals(method)) {
+			mNotifications.beginSync();
+		} else if (METHOD_END_SYNC.equals(method)) {
+			mNotifications.endSync();
+		} else {
+			return super.call(method, arg, extras);
+		}
+		return null;
+	}
+
 	@Override
 	public String getType(Uri uri) {
 		final int match = sUriMatcher.match(uri);
@@ -74,6 +130,9 @@ public class EmotesProvider extends ContentProvider {
 	@Override
 	public Cursor query(Uri uri, String[] projection, String selection,
 			String[] selectionArgs, String sortOrder) {
+		if (isForeignCaller()) {
+			return queryForeign(uri, projection, selection, selectionArgs, sortOrder);
+		}
 		SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
 		SelectionBuilder builder = new SelectionBuilder();
 		Context ctx = getContext();
@@ -135,15 +194,16 @@ public class EmotesProvider extends ContentProvider {
 		}
 
 		// Send broadcast to registered ContentObservers, to refresh UI.
-		Context ctx = getContext();
-		assert ctx != null;
-		ctx.getContentResolver().notifyChange(uri, null, false);
+		mNotifications.notifyChange(EmotesContract.Emote.CONTENT_URI);
 
 		return result;
 	}
 
 	@Override
 	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		if (isForeignCaller()) {
+			sValidator.checkSelection(selection);
+		}
 		SelectionBuilder builder = new SelectionBuilder();
 		final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
 		final int match = sUriMatcher.match(uri);
@@ -164,9 +224,7 @@ public class EmotesProvider extends ContentProvider {
 		}
 
 		// Send broadcast to registered ContentObservers, to refresh UI.
-		Context ctx = getContext();
-		assert ctx != null;
-		ctx.getContentResolver().notifyChange(uri, null, false);
+		mNotifications.notifyChange(EmotesContract.Emote.CONTENT_URI);
 
 		return count;
 	}
@@ -176,12 +234,79 @@ public class EmotesProvider extends ContentProvider {
 		throw new UnsupportedOperationException("Update not supported");
 	}
 
+	/**
+	 * Query for other apps, limited to the emote columns. The selection and
+	 * sort order are checked against {@link #COLUMNS} and the query builder
+	 * runs in strict mode, so the other tables can't be reached.
+	 */
+	private Cursor queryForeign(Uri uri, String[] projection, String selection,
+			String[] selectionArgs, String sortOrder) {
+		sValidator.checkSelection(selection);
+		sValidator.checkSortOrder(sortOrder);
+
+		SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+		builder.setTables(EmotesContract.Emote.TABLE_NAME);
+		builder.setProjectionMap(sProjectionMap);
+		builder.setStrict(true);
+
+		switch (sUriMatcher.match(uri)) {
+		case ROUTE_EMOTES_ID:
+			builder.appendWhere(EmotesContract.Emote._ID + "=");
+			builder.appendWhereEscapeString(uri.getLastPathSegment());
+			break;
+		case ROUTE_EMOTES:
+			break;
+		case ROUTE_EMOTES_DISTINCT:
+			builder.setDistinct(true);
+			break;
+		default:
+			throw new UnsupportedOperationException("Unknown uri: " + uri);
+		}
+
+		Cursor c;
+		try {
+			c = builder.query(mDatabaseHelper.getReadableDatabase(), projection,
+					selection, selectionArgs, null, null, sortOrder);
+		} catch (IllegalArgumentException e) {
+			// Column not in the projection map
+			throw new SecurityException(e.getMessage());
+		}
+		Context ctx = getContext();
+		assert ctx != null;
+		c.setNotificationUri(ctx.getContentResolver(), uri);
+		return c;
+	}
+
+	private static boolean isForeignCaller() {
+		return Binder.getCallingUid() != Process.myUid();
+	}
+
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		// One transaction for the whole batch, observers get a single
+		// notification from the coalescer
+		final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+		DatabaseConfig.MAIN.beginTransaction(db);
+		try {
+			ContentProviderResult[] results = super.applyBatch(operations);
+			db.setTransactionSuccessful();
+			return results;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Old separate database file, only opened to migrate it into
+	 * {@link BerryMotesDatabase}
+	 */
 	static class EmotesDatabase extends SQLiteOpenHelper {
 		private final Context mContext;
 
 		public static final int DATABASE_VERSION = 5;
 
-		private static final String DATABASE_NAME = "emotes.db";
+		static final String DATABASE_NAME = "emotes.db";
 		private static final String IDX_ENTRIES_NAME = "idx_"
 				+ EmotesContract.Emote.TABLE_NAME + "_"
 				+ EmotesContract.Emote.COLUMN_NAME;
@@ -189,7 +314,7 @@ public class EmotesProvider extends ContentProvider {
 				+ EmotesContract.Emote.TABLE_NAME + "_"
 				+ EmotesContract.Emote.COLUMN_HASH;
 
-		private static final String SQL_CREATE_ENTRIES = "CREATE TABLE "
+		static final String SQL_CREATE_ENTRIES = "CREATE TABLE "
 				+ EmotesContract.Emote.TABLE_NAME + " ("
 				+ EmotesContract.Emote._ID + " INTEGER PRIMARY KEY,"
 				+ EmotesContract.Emote.COLUMN_NAME + " TEXT,"
@@ -199,12 +324,12 @@ public class EmotesProvider extends ContentProvider {
 				+ EmotesContract.Emote.COLUMN_INDEX + " INTEGER,"
 				+ EmotesContract.Emote.COLUMN_DELAY + " INTEGER,"
 				+ EmotesContract.Emote.COLUMN_SUBREDDIT + " TEXT)";
-		private static final String SQL_CREATE_IDX_ENTRIES_NAME = "CREATE INDEX "
+		static final String SQL_CREATE_IDX_ENTRIES_NAME = "CREATE INDEX "
 				+ IDX_ENTRIES_NAME
 				+ " ON "
 				+ EmotesContract.Emote.TABLE_NAME
 				+ "(" + EmotesContract.Emote.COLUMN_NAME + ")";
-		private static final String SQL_CREATE_IDX_ENTRIES_HASH = "CREATE INDEX "
+		static final String SQL_CREATE_IDX_ENTRIES_HASH = "CREATE INDEX "
 				+ IDX_ENTRIES_HASH
 				+ " ON "
 				+ EmotesContract.Emote.TABLE_NAME
@@ -227,6 +352,7 @@ public class EmotesProvider extends ContentProvider {
 			db.execSQL(SQL_CREATE_ENTRIES);
 			db.execSQL(SQL_CREATE_IDX_ENTRIES_NAME);
 			db.execSQL(SQL_CREATE_IDX_ENTRIES_HASH);
+			EmoteIndexSnapshot.invalidate(mContext);
 			PreferenceManager.getDefaultSharedPreferences(mContext).edit()
 					.remove(Settings.KEY_SYNC_LAST_MODIFIED).commit();
 		}
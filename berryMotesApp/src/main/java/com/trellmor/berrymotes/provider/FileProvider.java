@@ -18,6 +18,7 @@
 
 package com.trellmor.berrymotes.provider;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -25,23 +26,26 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.ParcelFileDescriptor;
 import android.preference.PreferenceManager;
 import android.provider.OpenableColumns;
 import android.util.Log;
+import android.util.LruCache;
 import android.webkit.MimeTypeMap;
 
 import com.trellmor.berrymotes.util.Settings;
@@ -52,14 +56,29 @@ public class FileProvider extends ContentProvider {
 	private static final String TAG = FileProvider.class.getName();
 
 	private static final int ROUTE_EMOTE = 1;
+	private static final int FRAMES_CACHE_SIZE = 128;
 
 	private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 	static {
 		sUriMatcher.addURI(FileContract.CONTENT_AUTHORITY, FileContract.PATH_EMOTE + "/*", ROUTE_EMOTE);
 	}
 
+	// Emote name -> frames, cleared whenever the emotes table changes
+	private final LruCache<String, EmoteFrames> mFrames = new LruCache<>(FRAMES_CACHE_SIZE);
+	private final AtomicInteger mFramesGeneration = new AtomicInteger();
+	// Output file name -> render in progress
+	private final HashMap<String, Render> mRenders = new HashMap<>();
+
 	@Override
 	public boolean onCreate() {
+		getContext().getContentResolver().registerContentObserver(EmotesContract.Emote.CONTENT_URI, true,
+				new ContentObserver(null) {
+					@Override
+					public void onChange(boolean selfChange) {
+						mFramesGeneration.incrementAndGet();
+						mFrames.evictAll();
+					}
+				});
 		return true;
 	}
 
@@ -81,11 +100,18 @@ public class FileProvider extends ContentProvider {
 			String ext = MimeTypeMap.getFileExtensionFromUrl(uri.toString());
 			if (!"".equals(ext)) {
 				String name = uri.getLastPathSegment();
-				File emote = getEmote(name);
 				MatrixCursor cursor = new MatrixCursor(new String[] { OpenableColumns.DISPLAY_NAME,
 						OpenableColumns.SIZE });
 
-				cursor.addRow(new Object[] { emote.getName(), emote.length() });
+				File cached = new File(getContext().getCacheDir(), name);
+				if (name.toLowerCase().endsWith(".gif") && !cached.exists()) {
+					// Streamed by openFile(), the size is only known once
+					// the gif is encoded
+					cursor.addRow(new Object[] { name, null });
+				} else {
+					File emote = getEmote(name);
+					cursor.addRow(new Object[] { emote.getName(), emote.length() });
+				}
 
 				return cursor;
 			}
@@ -98,7 +124,15 @@ public class FileProvider extends ContentProvider {
 	public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
 		switch (sUriMatcher.match(uri)) {
 		case ROUTE_EMOTE:
-			return ParcelFileDescriptor.open(getEmote(uri.getLastPathSegment()), ParcelFileDescriptor.MODE_READ_WRITE);
+			String name = uri.getLastPathSegment();
+			if ("r".equals(mode) && name.toLowerCase().endsWith(".gif")
+					&& !new File(getContext().getCacheDir(), name).exists()) {
+				ParcelFileDescriptor pipe = openGifPipe(name);
+				if (pipe != null) {
+					return pipe;
+				}
+			}
+			return ParcelFileDescriptor.open(getEmote(name), ParcelFileDescriptor.MODE_READ_WRITE);
 		default:
 			throw new UnsupportedOperationException("Unsupported uri: " + uri.toString());
 		}
@@ -110,73 +144,217 @@ public class FileProvider extends ContentProvider {
 		File emote = new File(cache, name);
 
 		if (!emote.exists()) {
-			String emoteName = name;
-			String emoteExt = ".png"; // assume png by default
-			if (name.contains(".")) {
-				emoteName = name.substring(0, name.indexOf("."));
-				emoteExt = name.substring(name.indexOf(".")).toLowerCase();
-			}
-
-			Cursor cursor = context.getContentResolver().query(EmotesContract.Emote.CONTENT_URI,
-					new String[] { EmotesContract.Emote.COLUMN_IMAGE, EmotesContract.Emote.COLUMN_DELAY },
-					EmotesContract.Emote.COLUMN_NAME + "=?", new String[] { emoteName },
-					EmotesContract.Emote.COLUMN_INDEX + " ASC");
-			if (cursor != null && cursor.getCount() > 0) {
-				cursor.moveToFirst();
-
-				final int POS_IMAGE = cursor.getColumnIndex(EmotesContract.Emote.COLUMN_IMAGE);
-				final int POS_DELAY = cursor.getColumnIndex(EmotesContract.Emote.COLUMN_DELAY);
-
-				if (".gif".equals(emoteExt)) {
-					AnimatedGifEncoder age = new AnimatedGifEncoder();
-					age.setRepeat(0);
-					OutputStream os;
-					try {
-						File tempEmote = File.createTempFile(name, null, cache);
-						os = new FileOutputStream(tempEmote);
-						age.start(os);
-						do {
-							Bitmap b = addWhiteBackground(cursor.getString(POS_IMAGE));
-
-							age.addFrame(b);
-							age.setDelay(cursor.getInt(POS_DELAY));
-						} while (cursor.moveToNext());
-						age.finish();
-						os.flush();
-						os.close();
-						tempEmote.renameTo(emote);
-					} catch (IOException e) {
-						Log.e(TAG, "Generate gif " + name, e);
+			// Concurrent requests for the same file wait for a single render
+			Render render = acquireRender(name);
+			try {
+				synchronized (render) {
+					if (!emote.exists()) {
+						renderEmote(name, emote, null);
 					}
-				} else if (".png".equals(emoteExt)) {
-					try {
-						if (PreferenceManager.getDefaultSharedPreferences(getContext()).getBoolean(
-								Settings.KEY_BACKGROUND, true)) {
-							Bitmap b = addWhiteBackground(cursor.getString(POS_IMAGE));
-
-							File tmpDst = File.createTempFile(emote.getName(), null, emote.getParentFile());
-							OutputStream out = new FileOutputStream(tmpDst);
-							b.compress(CompressFormat.PNG, 80, out);
-							out.close();
-
-							tmpDst.renameTo(emote);
-						} else {
-							copy(new File(cursor.getString(POS_IMAGE)), emote);
+				}
+			} finally {
+				releaseRender(name, render);
+			}
+		}
+
+		emote.setLastModified(System.currentTimeMillis());
+		return emote;
+	}
+
+	/**
+	 * Stream a gif to the caller while it is encoded, the file is written to
+	 * the cache at the same time
+	 *
+	 * @return Read end of the pipe or null if no pipe could be created
+	 */
+	private ParcelFileDescriptor openGifPipe(final String name) {
+		if (getFrames(name.substring(0, name.indexOf("."))) == null) {
+			// Unknown emote
+			return null;
+		}
+
+		final ParcelFileDescriptor[] pipe;
+		try {
+			pipe = ParcelFileDescriptor.createPipe();
+		} catch (IOException e) {
+			Log.e(TAG, "Create pipe " + name, e);
+			return null;
+		}
+
+		final File emote = new File(getContext().getCacheDir(), name);
+		final PipeWriter writer = new PipeWriter(new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]),
+				emote);
+		// The render never waits for the receiver, so a slow or stalled reader
+		// can't hold the render lock. The writer blocks for as long as the
+		// reader does and gets its own thread, on the shared pool it could
+		// starve the render it waits for.
+		new Thread(writer, "FileProvider pipe " + name).start();
+		AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+			@Override
+			public void run() {
+				Render render = acquireRender(name);
+				try {
+					synchronized (render) {
+						if (!emote.exists()) {
+							renderEmote(name, emote, writer);
 						}
-					} catch (IOException e) {
-						Log.e(TAG, "Copy file " + name, e);
+						// Otherwise rendered by another request in the
+						// meantime, the writer sends the file
+					}
+				} finally {
+					releaseRender(name, render);
+					writer.finish();
+				}
+				emote.setLastModified(System.currentTimeMillis());
+			}
+		});
+
+		return pipe[0];
+	}
+
+	private Render acquireRender(String name) {
+		synchronized (mRenders) {
+			Render render = mRenders.get(name);
+			if (render == null) {
+				render = new Render();
+				mRenders.put(name, render);
+			}
+			render.waiters++;
+			return render;
+		}
+	}
+
+	private void releaseRender(String name, Render render) {
+		synchronized (mRenders) {
+			if (--render.waiters == 0) {
+				mRenders.remove(name);
+			}
+		}
+	}
+
+	/**
+	 * @param stream Optional stream that receives the gif while it is encoded
+	 */
+	private void renderEmote(String name, File emote, OutputStream stream) {
+		File cache = emote.getParentFile();
+		String emoteName = name;
+		String emoteExt = ".png"; // assume png by default
+		if (name.contains(".")) {
+			emoteName = name.substring(0, name.indexOf("."));
+			emoteExt = name.substring(name.indexOf(".")).toLowerCase();
+		}
+
+		EmoteFrames frames = getFrames(emoteName);
+		if (frames == null) {
+			return;
+		}
+
+		// Reuses its pixel buffer for all frames
+		WhiteBackgroundCompositor compositor = new WhiteBackgroundCompositor();
+
+		if (".gif".equals(emoteExt)) {
+			AnimatedGifEncoder age = new AnimatedGifEncoder();
+			age.setRepeat(0);
+			OutputStream os;
+			File tempEmote = null;
+			try {
+				tempEmote = File.createTempFile(name, null, cache);
+				os = new BufferedOutputStream(new FileOutputStream(tempEmote));
+				if (stream != null) {
+					os = new TeeOutputStream(os, new BufferedOutputStream(stream));
+				}
+				age.start(os);
+				for (int i = 0; i < frames.images.length; i++) {
+					Bitmap b = compositor.decode(frames.images[i]);
+					if (b == null) {
+						// A gif with a missing frame would be cached for good
+						throw new IOException("Failed to decode " + frames.images[i]);
+					}
+
+					age.addFrame(b);
+					age.setDelay(frames.delays[i]);
+					if (stream != null) {
+						// Hand every finished frame to the receiver
+						os.flush();
 					}
+				}
+				age.finish();
+				os.flush();
+				os.close();
+				tempEmote.renameTo(emote);
+			} catch (IOException e) {
+				Log.e(TAG, "Generate gif " + name, e);
+			} finally {
+				// Never leave a partial gif behind
+				if (tempEmote != null) {
+					tempEmote.delete();
+				}
+			}
+		} else if (".png".equals(emoteExt)) {
+			try {
+				if (PreferenceManager.getDefaultSharedPreferences(getContext()).getBoolean(
+						Settings.KEY_BACKGROUND, true)) {
+					Bitmap b = compositor.decode(frames.images[0]);
+					if (b == null) {
+						throw new IOException("Failed to decode " + frames.images[0]);
+					}
+
+					File tmpDst = File.createTempFile(emote.getName(), null, emote.getParentFile());
+					OutputStream out = new FileOutputStream(tmpDst);
+					b.compress(CompressFormat.PNG, 80, out);
+					out.close();
+
+					tmpDst.renameTo(emote);
 				} else {
-					throw new UnsupportedOperationException("Unsupported file type: " + emoteExt);
+					copy(new File(frames.images[0]), emote);
 				}
+			} catch (IOException e) {
+				Log.e(TAG, "Copy file " + name, e);
 			}
+		} else {
+			throw new UnsupportedOperationException("Unsupported file type: " + emoteExt);
+		}
+	}
 
-			if (cursor != null)
-				cursor.close();
+	private EmoteFrames getFrames(String name) {
+		EmoteFrames frames = mFrames.get(name);
+		if (frames != null) {
+			return frames;
 		}
 
-		emote.setLastModified(System.currentTimeMillis());
-		return emote;
+		int generation = mFramesGeneration.get();
+		Cursor cursor = getContext().getContentResolver().query(EmotesContract.Emote.CONTENT_URI,
+				new String[] { EmotesContract.Emote.COLUMN_IMAGE, EmotesContract.Emote.COLUMN_DELAY },
+				EmotesContract.Emote.COLUMN_NAME + "=?", new String[] { name },
+				EmotesContract.Emote.COLUMN_INDEX + " ASC");
+		if (cursor == null) {
+			return null;
+		}
+
+		try {
+			if (cursor.getCount() == 0) {
+				return null;
+			}
+
+			final int POS_IMAGE = cursor.getColumnIndex(EmotesContract.Emote.COLUMN_IMAGE);
+			final int POS_DELAY = cursor.getColumnIndex(EmotesContract.Emote.COLUMN_DELAY);
+
+			frames = new EmoteFrames(cursor.getCount());
+			int i = 0;
+			while (cursor.moveToNext()) {
+				frames.images[i] = cursor.getString(POS_IMAGE);
+				frames.delays[i] = cursor.getInt(POS_DELAY);
+				i++;
+			}
+		} finally {
+			cursor.close();
+		}
+
+		// Don't cache a result that was read while the emotes changed
+		if (generation == mFramesGeneration.get()) {
+			mFrames.put(name, frames);
+		}
+		return frames;
 	}
 
 	@Override
@@ -194,19 +372,6 @@ public class FileProvider extends ContentProvider {
 		return 0;
 	}
 
-	private Bitmap addWhiteBackground(String src) {
-		Bitmap b = BitmapFactory.decodeFile(src);
-
-		// Replace transparency in png with white
-		Bitmap bg = Bitmap.createBitmap(b.getWidth(), b.getHeight(), b.getConfig());
-		bg.eraseColor(Color.WHITE);
-		Canvas canvas = new Canvas(bg);
-		canvas.drawBitmap(b, 0f, 0f, null);
-		b.recycle();
-
-		return bg;
-	}
-
 	private void copy(File src, File dst) throws IOException {
 		InputStream in = new FileInputStream(src);
 
@@ -225,4 +390,207 @@ public class FileProvider extends ContentProvider {
 		tmpDst.renameTo(dst);
 	}
 
+	private static class EmoteFrames {
+		final String[] images;
+		final int[] delays;
+
+		EmoteFrames(int count) {
+			images = new String[count];
+			delays = new int[count];
+		}
+	}
+
+	private static class Render {
+		int waiters = 0;
+	}
+
+	/**
+	 * Buffers the gif for a pipe and writes it on its own thread. Bytes that
+	 * don't fit the buffer and a gif that was already rendered are read from
+	 * the cached file once the render is done.
+	 */
+	private static class PipeWriter extends OutputStream implements Runnable {
+		private static final int BUFFER_LIMIT = 512 * 1024;
+
+		private final OutputStream mPipe;
+		private final File mFile;
+		// Guarded by this
+		private final ArrayDeque<byte[]> mChunks = new ArrayDeque<>();
+		private int mBuffered = 0;
+		private boolean mOverflow = false;
+		private boolean mFinished = false;
+		private boolean mBroken = false;
+
+		PipeWriter(OutputStream pipe, File file) {
+			mPipe = pipe;
+			mFile = file;
+		}
+
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			if (mBroken || mOverflow || len == 0) {
+				return;
+			}
+			if (mBuffered + len > BUFFER_LIMIT) {
+				// Reader is too slow, continue from the file later
+				mOverflow = true;
+			} else {
+				byte[] chunk = new byte[len];
+				System.arraycopy(b, off, chunk, 0, len);
+				mChunks.add(chunk);
+				mBuffered += len;
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Ignored, the stream ends with {@link #finish()} once the file is
+		 * in place
+		 */
+		@Override
+		public void close() {
+		}
+
+		/**
+		 * The render is done, send what is left and close the pipe
+		 */
+		public synchronized void finish() {
+			mFinished = true;
+			notifyAll();
+		}
+
+		@Override
+		public void run() {
+			long written = 0;
+			try {
+				while (true) {
+					byte[] chunk;
+					synchronized (this) {
+						while (mChunks.isEmpty() && !mFinished) {
+							wait();
+						}
+						chunk = mChunks.poll();
+						if (chunk == null) {
+							break;
+						}
+						mBuffered -= chunk.length;
+					}
+					mPipe.write(chunk);
+					written += chunk.length;
+				}
+
+				boolean fromFile;
+				synchronized (this) {
+					fromFile = mOverflow || written == 0;
+				}
+				if (fromFile && mFile.exists()) {
+					InputStream in = new FileInputStream(mFile);
+					try {
+						long skipped = 0;
+						while (skipped < written) {
+							long n = in.skip(written - skipped);
+							if (n <= 0) {
+								throw new IOException("File shorter than the streamed part");
+							}
+							skipped += n;
+						}
+						byte[] buf = new byte[8192];
+						int len;
+						while ((len = in.read(buf)) > 0) {
+							mPipe.write(buf, 0, len);
+						}
+					} finally {
+						in.close();
+					}
+				}
+			} catch (IOException e) {
+				// The receiver closed the pipe
+				Log.d(TAG, "Stream " + mFile.getName() + ": " + e.getMessage());
+				synchronized (this) {
+					mBroken = true;
+					mChunks.clear();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				try {
+					mPipe.close();
+				} catch (IOException e) {
+					// Nothing left to do
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes to a file and a pipe, the file is completed even if the reader
+	 * of the pipe goes away
+	 */
+	private static class TeeOutputStream extends OutputStream {
+		private final OutputStream mFile;
+		private OutputStream mPipe;
+
+		TeeOutputStream(OutputStream file, OutputStream pipe) {
+			mFile = file;
+			mPipe = pipe;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			mFile.write(b);
+			if (mPipe != null) {
+				try {
+					mPipe.write(b);
+				} catch (IOException e) {
+					closePipe();
+				}
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			mFile.write(b, off, len);
+			if (mPipe != null) {
+				try {
+					mPipe.write(b, off, len);
+				} catch (IOException e) {
+					closePipe();
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			mFile.flush();
+			if (mPipe != null) {
+				try {
+					mPipe.flush();
+				} catch (IOException e) {
+					closePipe();
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			mFile.close();
+			closePipe();
+		}
+
+		private void closePipe() {
+			if (mPipe != null) {
+				try {
+					mPipe.close();
+				} catch (IOException e) {
+					// Broken pipe
+				}
+				mPipe = null;
+			}
+		}
+	}
 }
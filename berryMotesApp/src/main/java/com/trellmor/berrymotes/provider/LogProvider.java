@@ -33,7 +33,7 @@ import ch.qos.logback.classic.db.names.DBNameResolver;
 import ch.qos.logback.classic.db.names.DefaultDBNameResolver;
 
 public class LogProvider extends ContentProvider {
-	private LogsDatabase mDatabase;
+	private BerryMotesDatabase mDatabase;
 
 	public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "vnd.berrymotes.subreddits";
 	public static final String CONTENT_TYPE_ITEM = ContentResolver.CURSOR_ITEM_BASE_TYPE + "vnd.berrymotes.subreddit";
@@ -53,7 +53,7 @@ public class LogProvider extends ContentProvider {
 
 	@Override
 	public boolean onCreate() {
-		mDatabase = new LogsDatabase(getContext());
+		mDatabase = BerryMotesDatabase.getInstance(getContext());
 		return true;
 	}
 
@@ -129,16 +129,20 @@ public class LogProvider extends ContentProvider {
 		throw new UnsupportedOperationException("Not yet implemented");
 	}
 
+	/**
+	 * Old separate database file, only opened to migrate it into
+	 * {@link BerryMotesDatabase}
+	 */
 	static class LogsDatabase extends SQLiteOpenHelper {
 		public static final int DATABASE_VERSION = 1;
 
-		private static final String DATABASE_NAME = "logs.db";
+		static final String DATABASE_NAME = "logs.db";
 
 		public LogsDatabase(Context context) {
 			super(context, DATABASE_NAME, null, DATABASE_VERSION);
 		}
 
-		private static final String SQL_CREATE_LOGS = "CREATE TABLE " + LogsColumns.TABLE_LOGS + "("
+		static final String SQL_CREATE_LOGS = "CREATE TABLE " + LogsColumns.TABLE_LOGS + "("
 				+ LogsColumns._ID + " INTEGER PRIMARY KEY,"
 				+ LogsColumns.COLUMN_TIMESTAMP + " INTEGER,"
 				+ LogsColumns.COLUMN_LEVEL + " TEXT,"
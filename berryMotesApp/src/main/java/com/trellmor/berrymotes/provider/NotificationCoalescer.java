@@ -0,0 +1,102 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.provider;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Collects content change notifications and sends each changed URI once.
+ *
+ * Outside of a sync notifications are debounced by a short delay. While a sync
+ * is running they are held back and sent at most once per sync interval, and
+ * once more when the sync ends.
+ */
+class NotificationCoalescer {
+	private static final long FLUSH_DELAY = 250;
+	private static final long SYNC_FLUSH_INTERVAL = 30 * 1000;
+
+	private final ContentResolver mContentResolver;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final HashSet<Uri> mPending = new HashSet<>();
+	private int mSyncDepth = 0;
+	private long mLastFlush = 0;
+	private boolean mScheduled = false;
+
+	private final Runnable mFlush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	public NotificationCoalescer(ContentResolver contentResolver) {
+		mContentResolver = contentResolver;
+	}
+
+	public synchronized void notifyChange(Uri uri) {
+		mPending.add(uri);
+		if (mScheduled) {
+			return;
+		}
+		mScheduled = true;
+
+		long delay = FLUSH_DELAY;
+		if (mSyncDepth > 0) {
+			delay = Math.max(mLastFlush + SYNC_FLUSH_INTERVAL - SystemClock.elapsedRealtime(), FLUSH_DELAY);
+		}
+		mHandler.postDelayed(mFlush, delay);
+	}
+
+	public synchronized void beginSync() {
+		mSyncDepth++;
+		mLastFlush = SystemClock.elapsedRealtime();
+	}
+
+	public synchronized void endSync() {
+		if (mSyncDepth > 0) {
+			mSyncDepth--;
+		}
+		if (mSyncDepth == 0 && !mPending.isEmpty()) {
+			mHandler.removeCallbacks(mFlush);
+			mScheduled = true;
+			mHandler.post(mFlush);
+		}
+	}
+
+	private void flush() {
+		ArrayList<Uri> uris;
+		synchronized (this) {
+			mScheduled = false;
+			mLastFlush = SystemClock.elapsedRealtime();
+			uris = new ArrayList<>(mPending);
+			mPending.clear();
+		}
+
+		for (Uri uri : uris) {
+			mContentResolver.notifyChange(uri, null, false);
+		}
+	}
+}
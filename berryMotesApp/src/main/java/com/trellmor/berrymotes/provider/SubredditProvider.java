@@ -19,9 +19,12 @@
 package com.trellmor.berrymotes.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -29,8 +32,13 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import java.util.ArrayList;
+import java.util.Collections;
+
 public class SubredditProvider extends ContentProvider {
-	private SubredditsDatabase mDatabase;
+	private BerryMotesDatabase mDatabase;
+	// Set while applyBatch runs on this thread, the batch notifies once
+	private final ThreadLocal<Boolean> mInBatch = new ThreadLocal<>();
 
 	public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "vnd.berrymotes.subreddits";
 	public static final String CONTENT_TYPE_ITEM = ContentResolver.CURSOR_ITEM_BASE_TYPE + "vnd.berrymotes.subreddit";
@@ -38,19 +46,41 @@ public class SubredditProvider extends ContentProvider {
 	public static final String PATH_SUBREDDITS = "subreddits";
 	private static final Uri CONTENT_URI_BASE = Uri.parse("content://" + CONTENT_AUTHORITY);
 	public static final Uri CONTENT_URI_SUBREDDITS = CONTENT_URI_BASE.buildUpon().appendPath(PATH_SUBREDDITS).build();
+	/**
+	 * Append the search query as last path segment, see {@link SubredditSearch}
+	 */
+	public static final String PATH_SEARCH = "search";
+	public static final Uri CONTENT_URI_SEARCH = CONTENT_URI_SUBREDDITS.buildUpon().appendPath(PATH_SEARCH).build();
+	/**
+	 * Distinct emote subreddits left joined with the subreddits table, columns
+	 * and selection can use the emotes and subreddits table names. Served
+	 * here and not by the exported emotes provider.
+	 */
+	public static final String PATH_EMOTE_SUBREDDITS = "emote_subreddits";
+	public static final Uri CONTENT_URI_EMOTE_SUBREDDITS = CONTENT_URI_BASE.buildUpon().appendPath(PATH_EMOTE_SUBREDDITS).build();
+
+	private static final String TABLE_EMOTE_SUBREDDITS = EmotesContract.Emote.TABLE_NAME
+			+ " LEFT JOIN " + SubredditColumns.TABLE_SUBREDDITS + " ON "
+			+ SubredditColumns.TABLE_SUBREDDITS + "." + SubredditColumns.COLUMN_NAME
+			+ "=" + EmotesContract.Emote.TABLE_NAME + "." + EmotesContract.Emote.COLUMN_SUBREDDIT;
 
 	private static final int ROUTE_SUBREDDITS = 1;
 	private static final int ROUTE_SUBREDDIT = 2;
+	private static final int ROUTE_SEARCH = 3;
+	private static final int ROUTE_EMOTE_SUBREDDITS = 4;
 
 	private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 	static {
 		sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SUBREDDITS, ROUTE_SUBREDDITS);
+		// Before the wildcard, UriMatcher takes the first matching segment
+		sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SUBREDDITS + "/" + PATH_SEARCH + "/*", ROUTE_SEARCH);
 		sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SUBREDDITS + "/*", ROUTE_SUBREDDIT);
+		sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_EMOTE_SUBREDDITS, ROUTE_EMOTE_SUBREDDITS);
 	}
 
 	@Override
 	public boolean onCreate() {
-		mDatabase = new SubredditsDatabase(getContext());
+		mDatabase = BerryMotesDatabase.getInstance(getContext());
 
 		return true;
 	}
@@ -61,6 +91,10 @@ public class SubredditProvider extends ContentProvider {
 		switch (match) {
 			case ROUTE_SUBREDDITS:
 				return CONTENT_TYPE;
+			case ROUTE_SEARCH:
+				return CONTENT_TYPE;
+			case ROUTE_EMOTE_SUBREDDITS:
+				return EmotesContract.Emote.CONTENT_TYPE;
 			case ROUTE_SUBREDDIT:
 				return  CONTENT_TYPE_ITEM;
 			default:
@@ -81,6 +115,24 @@ public class SubredditProvider extends ContentProvider {
 				String id = uri.getLastPathSegment();
 				c = db.query(SubredditColumns.TABLE_SUBREDDITS, projection, SubredditColumns._ID + " =?", new String[] {id}, null, null, sortOrder);
 				break;
+			case ROUTE_SEARCH:
+				ArrayList<String> args = new ArrayList<>();
+				String search = SubredditSearch.selection(uri.getLastPathSegment(), args);
+				if (selection != null) {
+					search = "(" + search + ") AND (" + selection + ")";
+					if (selectionArgs != null) {
+						Collections.addAll(args, selectionArgs);
+					}
+				}
+				c = db.query(SubredditColumns.TABLE_SUBREDDITS, projection, search, args.toArray(new String[args.size()]), null, null, sortOrder);
+				// Updates notify the subreddits uri
+				c.setNotificationUri(getContext().getContentResolver(), CONTENT_URI_SUBREDDITS);
+				return c;
+			case ROUTE_EMOTE_SUBREDDITS:
+				// Both tables live in the same database, join them
+				c = db.query(true, TABLE_EMOTE_SUBREDDITS, projection, selection, selectionArgs, null, null, sortOrder, null);
+				c.setNotificationUri(getContext().getContentResolver(), EmotesContract.Emote.CONTENT_URI);
+				return c;
 			default:
 				throw new UnsupportedOperationException("Unknown uri: " + uri);
 		}
@@ -95,9 +147,16 @@ public class SubredditProvider extends ContentProvider {
 		final int match = sUriMatcher.match(uri);
 		switch (match) {
 			case ROUTE_SUBREDDITS:
-				long id = db.insertOrThrow(SubredditColumns.TABLE_SUBREDDITS, null, values);
-				Context context = getContext();
-				context.getContentResolver().notifyChange(uri, null);
+				long id;
+				db.beginTransaction();
+				try {
+					id = db.insertOrThrow(SubredditColumns.TABLE_SUBREDDITS, null, values);
+					SubredditSearch.index(db, id, values.getAsString(SubredditColumns.COLUMN_NAME));
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+				notifyChange(uri);
 				return Uri.parse(CONTENT_URI_SUBREDDITS + "/" + id);
 			default:
 				throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -115,7 +174,7 @@ public class SubredditProvider extends ContentProvider {
 				selectionArgs = new String[] {id};
 			case ROUTE_SUBREDDITS:
 				int rowsAffected = db.delete(SubredditColumns.TABLE_SUBREDDITS, selection, selectionArgs);
-				getContext().getContentResolver().notifyChange(uri, null);
+				notifyChange(uri);
 				return rowsAffected;
 			default:
 				throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -132,27 +191,84 @@ public class SubredditProvider extends ContentProvider {
 				selection = SubredditColumns._ID + " =?";
 				selectionArgs = new String[] {id};
 			case ROUTE_SUBREDDITS:
-				int rowsAffected = db.update(SubredditColumns.TABLE_SUBREDDITS, values, selection, selectionArgs);
-				getContext().getContentResolver().notifyChange(uri, null);
+				if (!values.containsKey(SubredditColumns.COLUMN_NAME)) {
+					int rowsAffected = db.update(SubredditColumns.TABLE_SUBREDDITS, values, selection, selectionArgs);
+					notifyChange(uri);
+					return rowsAffected;
+				}
+
+				// Renamed, the search trigrams change too
+				int rowsAffected;
+				db.beginTransaction();
+				try {
+					ArrayList<Long> ids = new ArrayList<>();
+					Cursor c = db.query(SubredditColumns.TABLE_SUBREDDITS, new String[] { SubredditColumns._ID },
+							selection, selectionArgs, null, null, null);
+					try {
+						while (c.moveToNext()) {
+							ids.add(c.getLong(0));
+						}
+					} finally {
+						c.close();
+					}
+					rowsAffected = db.update(SubredditColumns.TABLE_SUBREDDITS, values, selection, selectionArgs);
+					for (long rowId : ids) {
+						SubredditSearch.index(db, rowId, values.getAsString(SubredditColumns.COLUMN_NAME));
+					}
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+				notifyChange(uri);
 				return rowsAffected;
 			default:
 				throw new UnsupportedOperationException("Unknown uri: " + uri);
 		}
 	}
 
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		final SQLiteDatabase db = mDatabase.getWritableDatabase();
+		ContentProviderResult[] results;
+		DatabaseConfig.MAIN.beginTransaction(db);
+		mInBatch.set(Boolean.TRUE);
+		try {
+			results = super.applyBatch(operations);
+			db.setTransactionSuccessful();
+		} finally {
+			mInBatch.remove();
+			db.endTransaction();
+		}
+
+		notifyChange(CONTENT_URI_SUBREDDITS);
+		return results;
+	}
+
+	private void notifyChange(Uri uri) {
+		if (mInBatch.get() == null) {
+			getContext().getContentResolver().notifyChange(uri, null);
+		}
+	}
+
+	/**
+	 * Old separate database file, only opened to migrate it into
+	 * {@link BerryMotesDatabase}
+	 */
 	static class SubredditsDatabase extends SQLiteOpenHelper {
-		public static final int DATABASE_VERSION = 2;
+		public static final int DATABASE_VERSION = 3;
 
-		private static final String DATABASE_NAME = "subreddits.db";
+		static final String DATABASE_NAME = "subreddits.db";
 
-		private static final String SQL_CREATE_ENTRIES = "CREATE TABLE "
+		static final String SQL_CREATE_ENTRIES = "CREATE TABLE "
 				+ SubredditColumns.TABLE_SUBREDDITS + " ("
 				+ SubredditColumns._ID + " INTEGER PRIMARY KEY,"
 				+ SubredditColumns.COLUMN_NAME + " TEXT,"
 				+ SubredditColumns.COLUMN_LAST_SYNC + " INTEGER,"
 				+ SubredditColumns.COLUMN_ENABLED + " INTEGER,"
 				+ SubredditColumns.COLUMN_ADDED + " INTEGER,"
-				+ SubredditColumns.COLUMN_SIZE + " INTEGER)";
+				+ SubredditColumns.COLUMN_SIZE + " INTEGER,"
+				+ SubredditColumns.COLUMN_USAGE + " INTEGER DEFAULT 0)";
 
 		private static final String SQL_DROP_ENTRIES = "DROP TABLE IF EXISTS "
 				+ SubredditColumns.TABLE_SUBREDDITS;
@@ -174,6 +290,10 @@ public class SubredditProvider extends ContentProvider {
 					db.execSQL(SQL_DROP_ENTRIES);
 					onCreate(db);
 					break;
+				case 2:
+					db.execSQL("ALTER TABLE " + SubredditColumns.TABLE_SUBREDDITS + " ADD COLUMN "
+							+ SubredditColumns.COLUMN_USAGE + " INTEGER DEFAULT 0");
+					break;
 			}
 		}
 	}
@@ -186,5 +306,6 @@ public class SubredditProvider extends ContentProvider {
 		public static final String COLUMN_ENABLED = "enabled";
 		public static final String COLUMN_ADDED = "added";
 		public static final String COLUMN_SIZE = "size";
+		public static final String COLUMN_USAGE = "usage";
 	}
 }
@@ -0,0 +1,146 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+
+/**
+ * Indexed subreddit name search.
+ *
+ * Queries shorter than a trigram are matched as a name prefix with a range
+ * scan on the case insensitive name index. Longer queries match anywhere in
+ * the name: every name is split into lower case trigrams, the candidates
+ * containing all trigrams of the query are looked up in the trigram index and
+ * only those are checked with LIKE.
+ */
+final class SubredditSearch {
+	static final String TABLE_TRIGRAMS = "subreddit_trigrams";
+	static final String COLUMN_TRIGRAM = "trigram";
+	static final String COLUMN_SUBREDDIT_ID = "subreddit_id";
+
+	private static final int GRAM = 3;
+
+	static final String SQL_CREATE_TRIGRAMS = "CREATE TABLE " + TABLE_TRIGRAMS + " ("
+			+ COLUMN_TRIGRAM + " TEXT,"
+			+ COLUMN_SUBREDDIT_ID + " INTEGER)";
+	static final String SQL_CREATE_IDX_TRIGRAMS = "CREATE INDEX idx_" + TABLE_TRIGRAMS
+			+ " ON " + TABLE_TRIGRAMS + "(" + COLUMN_TRIGRAM + "," + COLUMN_SUBREDDIT_ID + ")";
+	static final String SQL_CREATE_TRIGGER_DELETE = "CREATE TRIGGER trg_"
+			+ SubredditProvider.SubredditColumns.TABLE_SUBREDDITS + "_delete AFTER DELETE ON "
+			+ SubredditProvider.SubredditColumns.TABLE_SUBREDDITS + " BEGIN DELETE FROM "
+			+ TABLE_TRIGRAMS + " WHERE " + COLUMN_SUBREDDIT_ID + "=old."
+			+ SubredditProvider.SubredditColumns._ID + "; END";
+
+	private SubredditSearch() {
+	}
+
+	/**
+	 * Replace the trigrams of a subreddit, call inside a transaction
+	 */
+	static void index(SQLiteDatabase db, long id, String name) {
+		String[] args = new String[] { String.valueOf(id) };
+		db.delete(TABLE_TRIGRAMS, COLUMN_SUBREDDIT_ID + "=?", args);
+		if (name == null) {
+			return;
+		}
+
+		ContentValues values = new ContentValues();
+		for (String trigram : trigrams(name)) {
+			values.put(COLUMN_TRIGRAM, trigram);
+			values.put(COLUMN_SUBREDDIT_ID, id);
+			db.insert(TABLE_TRIGRAMS, null, values);
+		}
+	}
+
+	/**
+	 * Rebuild the trigrams of all subreddits
+	 */
+	static void rebuild(SQLiteDatabase db) {
+		db.beginTransaction();
+		try {
+			db.delete(TABLE_TRIGRAMS, null, null);
+			Cursor c = db.query(SubredditProvider.SubredditColumns.TABLE_SUBREDDITS, new String[] {
+					SubredditProvider.SubredditColumns._ID,
+					SubredditProvider.SubredditColumns.COLUMN_NAME }, null, null, null, null, null);
+			try {
+				while (c.moveToNext()) {
+					index(db, c.getLong(0), c.getString(1));
+				}
+			} finally {
+				c.close();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * @return Selection for subreddits matching the query, the arguments are
+	 * added to args
+	 */
+	static String selection(String query, ArrayList<String> args) {
+		String q = query.trim().toLowerCase(Locale.US);
+		String name = SubredditProvider.SubredditColumns.TABLE_SUBREDDITS + "."
+				+ SubredditProvider.SubredditColumns.COLUMN_NAME;
+
+		if (q.length() < GRAM) {
+			// Range scan on the name index, the upper bound sorts after any
+			// name with that prefix
+			args.add(q);
+			args.add(q + '\uffff');
+			return name + " COLLATE NOCASE >= ? AND " + name + " COLLATE NOCASE < ?";
+		}
+
+		LinkedHashSet<String> trigrams = trigrams(q);
+		StringBuilder sb = new StringBuilder();
+		sb.append(SubredditProvider.SubredditColumns.TABLE_SUBREDDITS).append('.')
+				.append(SubredditProvider.SubredditColumns._ID).append(" IN (SELECT ")
+				.append(COLUMN_SUBREDDIT_ID).append(" FROM ").append(TABLE_TRIGRAMS)
+				.append(" WHERE ").append(COLUMN_TRIGRAM).append(" IN (");
+		boolean first = true;
+		for (String trigram : trigrams) {
+			sb.append(first ? "?" : ",?");
+			args.add(trigram);
+			first = false;
+		}
+		sb.append(") GROUP BY ").append(COLUMN_SUBREDDIT_ID)
+				.append(" HAVING COUNT(*)=").append(trigrams.size())
+				.append(") AND ").append(name).append(" LIKE ?");
+		// The trigrams can be spread over the name, check the candidates
+		args.add("%" + q + "%");
+
+		return sb.toString();
+	}
+
+	static LinkedHashSet<String> trigrams(String name) {
+		String s = name.toLowerCase(Locale.US);
+		LinkedHashSet<String> trigrams = new LinkedHashSet<>();
+		for (int i = 0; i + GRAM <= s.length(); i++) {
+			trigrams.add(s.substring(i, i + GRAM));
+		}
+		return trigrams;
+	}
+}
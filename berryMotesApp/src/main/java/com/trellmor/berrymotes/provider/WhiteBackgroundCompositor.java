@@ -0,0 +1,96 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.provider;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Replaces transparency in emote images with white.
+ *
+ * Blends the pixels in place on a pixel buffer that is reused for every image
+ * decoded by the same instance, so rendering all frames of a gif needs one
+ * buffer and no second bitmap. Not thread safe.
+ */
+class WhiteBackgroundCompositor {
+	private final BitmapFactory.Options mOptions;
+	private int[] mPixels;
+
+	public WhiteBackgroundCompositor() {
+		mOptions = new BitmapFactory.Options();
+		mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		mOptions.inMutable = true;
+	}
+
+	/**
+	 * @param src Image file
+	 * @return Opaque bitmap or null if the image could not be decoded
+	 */
+	public Bitmap decode(String src) {
+		Bitmap b = BitmapFactory.decodeFile(src, mOptions);
+		if (b == null) {
+			return null;
+		}
+		if (!b.hasAlpha()) {
+			return b;
+		}
+
+		final int width = b.getWidth();
+		final int height = b.getHeight();
+		final int count = width * height;
+		if (mPixels == null || mPixels.length < count) {
+			mPixels = new int[count];
+		}
+		final int[] pixels = mPixels;
+
+		b.getPixels(pixels, 0, width, 0, 0, width, height);
+		for (int i = 0; i < count; i++) {
+			pixels[i] = blend(pixels[i]);
+		}
+
+		if (!b.isMutable()) {
+			Bitmap copy = b.copy(Bitmap.Config.ARGB_8888, true);
+			b.recycle();
+			b = copy;
+		}
+		b.setPixels(pixels, 0, width, 0, 0, width, height);
+		b.setHasAlpha(false);
+
+		return b;
+	}
+
+	/**
+	 * Alpha blend a non premultiplied ARGB pixel onto white
+	 */
+	static int blend(int pixel) {
+		final int a = pixel >>> 24;
+		if (a == 0xFF) {
+			return pixel;
+		}
+		if (a == 0) {
+			return 0xFFFFFFFF;
+		}
+
+		// c * a + 255 * (1 - a) == 255 - (255 - c) * a
+		final int r = 0xFF - ((0xFF - ((pixel >> 16) & 0xFF)) * a + 0x7F) / 0xFF;
+		final int g = 0xFF - ((0xFF - ((pixel >> 8) & 0xFF)) * a + 0x7F) / 0xFF;
+		final int b = 0xFF - ((0xFF - (pixel & 0xFF)) * a + 0x7F) / 0xFF;
+		return 0xFF000000 | (r << 16) | (g << 8) | b;
+	}
+}
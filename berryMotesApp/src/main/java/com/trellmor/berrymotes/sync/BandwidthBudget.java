@@ -0,0 +1,297 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.preference.PreferenceManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+import com.trellmor.berrymotes.util.BandwidthExhaustedException;
+import com.trellmor.berrymotes.util.Settings;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.TimeZone;
+
+/**
+ * Daily byte cap for syncs on metered networks.
+ *
+ * Only active if the user chose to sync on mobile within a budget. Downloads
+ * read through {@link #wrap(InputStream, int)}: bytes are counted per network
+ * type, and on a metered network reads are throttled by a token bucket and
+ * fail with {@link BandwidthExhaustedException} once the day's cap is used.
+ * Emote lists may use the last part of the cap that images can't, so list
+ * updates still get through when images already used most of it.
+ */
+class BandwidthBudget {
+	static final int PRIORITY_LIST = 0;
+	static final int PRIORITY_IMAGE = 1;
+
+	private static final long ONE_DAY = 24L * 60L * 60L * 1000L;
+	private static final long ONE_MB = 1024L * 1024L;
+	static final int DEFAULT_CAP_MB = 25;
+	// Part of the cap only lists may use
+	private static final int LIST_RESERVE_PERCENT = 10;
+	// Token bucket on metered networks, bytes per second and burst size
+	static final long METERED_RATE = 128L * 1024L;
+	private static final long BURST = 64L * 1024L;
+	// Counters are written after this many new bytes
+	private static final long SAVE_INTERVAL = 256L * 1024L;
+
+	private static final String PREF_DAY = "bandwidth_day";
+	private static final String PREF_METERED_TODAY = "bandwidth_metered_today";
+	private static final String PREF_BYTES = "bandwidth_bytes_";
+
+	private static BandwidthBudget sInstance = null;
+
+	private final SyncScheduler.Clock mClock;
+	private final SharedPreferences mPreferences;
+	private final TimeZone mTimeZone;
+
+	private int mNetworkType = -1;
+	private boolean mMetered = true;
+	private long mDay;
+	private long mMeteredToday;
+	private long mUnsaved = 0;
+	private long mTokens = BURST;
+	private long mLastRefill;
+
+	public static synchronized BandwidthBudget getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new BandwidthBudget(SyncScheduler.SYSTEM_CLOCK,
+					PreferenceManager.getDefaultSharedPreferences(context), TimeZone.getDefault());
+			sInstance.updateNetwork(context);
+		}
+		return sInstance;
+	}
+
+	BandwidthBudget(SyncScheduler.Clock clock, SharedPreferences preferences, TimeZone timeZone) {
+		mClock = clock;
+		mPreferences = preferences;
+		mTimeZone = timeZone;
+		mLastRefill = mClock.elapsedRealtime();
+		mDay = mPreferences.getLong(PREF_DAY, 0);
+		mMeteredToday = mPreferences.getLong(PREF_METERED_TODAY, 0);
+	}
+
+	/**
+	 * Read the active network from the system
+	 */
+	public void updateNetwork(Context context) {
+		ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo networkInfo = cm.getActiveNetworkInfo();
+		setNetwork((networkInfo != null) ? networkInfo.getType() : -1,
+				ConnectivityManagerCompat.isActiveNetworkMetered(cm));
+	}
+
+	public synchronized void setNetwork(int networkType, boolean metered) {
+		if (networkType != mNetworkType) {
+			// Unsaved bytes belong to the old network
+			save();
+		}
+		mNetworkType = networkType;
+		mMetered = metered;
+	}
+
+	public boolean isBudgetMode() {
+		return Settings.VALUE_SYNC_CONNECTION_BUDGET.equals(mPreferences.getString(Settings.KEY_SYNC_CONNECTION,
+				Settings.VALUE_SYNC_CONNECTION_WIFI));
+	}
+
+	/**
+	 * @return Bytes left today on metered networks, {@link Long#MAX_VALUE}
+	 * if there is no limit
+	 */
+	public synchronized long getRemaining() {
+		if (!isBudgetMode()) {
+			return Long.MAX_VALUE;
+		}
+		rollDay();
+		return Math.max(getCap() - mMeteredToday, 0);
+	}
+
+	/**
+	 * @return Milliseconds until the budget is reset
+	 */
+	public long getTimeUntilReset() {
+		long now = mClock.currentTimeMillis();
+		long local = now + mTimeZone.getOffset(now);
+		return ONE_DAY - local % ONE_DAY;
+	}
+
+	/**
+	 * @throws BandwidthExhaustedException if a download of this priority is
+	 * not allowed anymore today
+	 */
+	public synchronized void checkAvailable(int priority) throws BandwidthExhaustedException {
+		if (!mMetered || !isBudgetMode()) {
+			return;
+		}
+		rollDay();
+
+		long reserve = (priority == PRIORITY_LIST) ? 0 : getCap() * LIST_RESERVE_PERCENT / 100;
+		if (mMeteredToday >= getCap() - reserve) {
+			throw new BandwidthExhaustedException("Mobile data budget used up for today");
+		}
+	}
+
+	/**
+	 * Count, throttle and limit a download stream
+	 */
+	public InputStream wrap(InputStream is, int priority) throws BandwidthExhaustedException {
+		checkAvailable(priority);
+		return new BudgetInputStream(is, priority);
+	}
+
+	/**
+	 * @return Bytes used per network type since the app was installed
+	 */
+	public synchronized String getUsageReport() {
+		save();
+		StringBuilder sb = new StringBuilder();
+		sb.append("wifi ").append(getBytes(ConnectivityManager.TYPE_WIFI) / 1024).append(" KB, ");
+		sb.append("mobile ").append(getBytes(ConnectivityManager.TYPE_MOBILE) / 1024).append(" KB, ");
+		sb.append("metered today ").append(mMeteredToday / 1024).append(" KB");
+		if (isBudgetMode()) {
+			sb.append(" of ").append(getCap() / 1024).append(" KB");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Write the counters
+	 */
+	public synchronized void save() {
+		if (mUnsaved == 0) {
+			return;
+		}
+		mPreferences.edit()
+				.putLong(PREF_DAY, mDay)
+				.putLong(PREF_METERED_TODAY, mMeteredToday)
+				.putLong(PREF_BYTES + mNetworkType, getBytes(mNetworkType) + mUnsaved)
+				.commit();
+		mUnsaved = 0;
+	}
+
+	private long getBytes(int networkType) {
+		return mPreferences.getLong(PREF_BYTES + networkType, 0);
+	}
+
+	private long getCap() {
+		long mb;
+		try {
+			mb = Long.parseLong(mPreferences.getString(Settings.KEY_SYNC_MOBILE_BUDGET,
+					String.valueOf(DEFAULT_CAP_MB)));
+		} catch (NumberFormatException e) {
+			mb = DEFAULT_CAP_MB;
+		}
+		return mb * ONE_MB;
+	}
+
+	private void rollDay() {
+		long now = mClock.currentTimeMillis();
+		long day = (now + mTimeZone.getOffset(now)) / ONE_DAY;
+		if (day != mDay) {
+			mDay = day;
+			mMeteredToday = 0;
+		}
+	}
+
+	private synchronized void record(long bytes) {
+		rollDay();
+		if (mMetered) {
+			mMeteredToday += bytes;
+		}
+		mUnsaved += bytes;
+		if (mUnsaved >= SAVE_INTERVAL) {
+			save();
+		}
+	}
+
+	/**
+	 * @return Milliseconds to wait before the bytes may be read
+	 */
+	private synchronized long takeTokens(long bytes) {
+		if (!mMetered || !isBudgetMode()) {
+			return 0;
+		}
+
+		long now = mClock.elapsedRealtime();
+		mTokens = Math.min(BURST, mTokens + (now - mLastRefill) * METERED_RATE / 1000);
+		mLastRefill = now;
+
+		mTokens -= bytes;
+		return (mTokens < 0) ? -mTokens * 1000 / METERED_RATE : 0;
+	}
+
+	private class BudgetInputStream extends FilterInputStream {
+		private final int mPriority;
+
+		public BudgetInputStream(InputStream in, int priority) {
+			super(in);
+			mPriority = priority;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) == -1) ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			checkAvailable(mPriority);
+
+			int read = super.read(buffer, offset, (int) Math.min(count, BURST));
+			if (read > 0) {
+				record(read);
+				long wait = takeTokens(read);
+				if (wait > 0) {
+					try {
+						Thread.sleep(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Download interrupted");
+					}
+				}
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long byteCount) throws IOException {
+			// Count skipped bytes too, they are transferred anyway
+			byte[] buffer = new byte[(int) Math.min(byteCount, 4096)];
+			long skipped = 0;
+			while (skipped < byteCount) {
+				int read = read(buffer, 0, (int) Math.min(buffer.length, byteCount - skipped));
+				if (read == -1) {
+					break;
+				}
+				skipped += read;
+			}
+			return skipped;
+		}
+	}
+}
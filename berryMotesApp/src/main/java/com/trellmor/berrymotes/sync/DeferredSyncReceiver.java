@@ -0,0 +1,52 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+/**
+ * Requests a sync that the sync adapter deferred, the sync framework doesn't
+ * retry a sync that finished without an error
+ */
+public class DeferredSyncReceiver extends BroadcastReceiver {
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		SyncUtils.requestSync();
+	}
+
+	/**
+	 * Request a sync after a delay, replaces an earlier deferred request
+	 *
+	 * @param delay Seconds
+	 */
+	public static void schedule(Context context, long delay) {
+		Intent intent = new Intent(context, DeferredSyncReceiver.class);
+		PendingIntent pi = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+		AlarmManager am = (AlarmManager) context
+				.getSystemService(Context.ALARM_SERVICE);
+		// Inexact on newer versions, the scheduler checks the window again
+		am.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delay * 1000, pi);
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import android.net.ConnectivityManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Adaptive limit for concurrent downloads (additive increase, multiplicative
+ * decrease).
+ *
+ * The limit grows by one after a full window of fast, successful requests and
+ * is halved on errors, throttling (HTTP 429) or server errors (HTTP 5xx).
+ * Requests that take much longer than the best latency seen so far stop the
+ * limit from growing.
+ */
+class DownloadLimiter {
+	private final Logger Log = LoggerFactory.getLogger(DownloadLimiter.class);
+
+	static final int MAX_LIMIT_WIFI = 8;
+	static final int MAX_LIMIT_MOBILE = 4;
+	private static final int INITIAL_LIMIT = 2;
+	private static final int MIN_LIMIT = 1;
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+	// Latency above this multiple of the best latency counts as congestion
+	private static final int LATENCY_TOLERANCE = 3;
+	// Don't decrease more than once per this many milliseconds
+	private static final long DECREASE_INTERVAL = 1000;
+
+	private final SyncScheduler.Clock mClock;
+	private int mLimit = INITIAL_LIMIT;
+	private int mMaxLimit = MAX_LIMIT_MOBILE;
+	private int mNetworkType = -1;
+	private int mInFlight = 0;
+	private int mWindowSuccesses = 0;
+	private long mMinLatency = Long.MAX_VALUE;
+	// No decrease yet, the first failure always counts
+	private long mLastDecrease = -DECREASE_INTERVAL;
+	private long mBytes = 0;
+	private long mTransferTime = 0;
+
+	public DownloadLimiter() {
+		this(SyncScheduler.SYSTEM_CLOCK);
+	}
+
+	DownloadLimiter(SyncScheduler.Clock clock) {
+		mClock = clock;
+	}
+
+	/**
+	 * Wait until another download is allowed
+	 *
+	 * @return Permit that has to be released once the download is done
+	 */
+	public synchronized Permit acquire() throws InterruptedException {
+		while (mInFlight >= mLimit) {
+			wait();
+		}
+		mInFlight++;
+		return new Permit();
+	}
+
+	private synchronized void release(int responseCode, long latency, long bytes) {
+		mInFlight--;
+
+		if (responseCode < 0 || responseCode == HTTP_TOO_MANY_REQUESTS || responseCode >= 500) {
+			decrease();
+		} else if (responseCode == HttpURLConnection.HTTP_OK) {
+			// Only full downloads are comparable, a 304 or 404 is just a round trip
+			mBytes += bytes;
+			mTransferTime += latency;
+
+			if (latency < mMinLatency) {
+				mMinLatency = Math.max(latency, 1);
+			}
+
+			if (latency > mMinLatency * LATENCY_TOLERANCE) {
+				// Link is saturated, start a new window without growing
+				mWindowSuccesses = 0;
+			} else if (++mWindowSuccesses >= mLimit) {
+				mWindowSuccesses = 0;
+				if (mLimit < mMaxLimit) {
+					mLimit++;
+					Log.debug("Download limit increased to {}", mLimit);
+				}
+			}
+		}
+
+		notifyAll();
+	}
+
+	private void decrease() {
+		mWindowSuccesses = 0;
+
+		long now = mClock.elapsedRealtime();
+		if (now - mLastDecrease < DECREASE_INTERVAL) {
+			// Failures of requests started before the last decrease
+			return;
+		}
+		mLastDecrease = now;
+
+		int limit = Math.max(mLimit / 2, MIN_LIMIT);
+		if (limit != mLimit) {
+			mLimit = limit;
+			Log.info("Download limit decreased to {}", mLimit);
+		}
+	}
+
+	/**
+	 * Adjust the upper limit to the current connection type
+	 */
+	public synchronized void setNetworkType(int networkType) {
+		if (networkType == mNetworkType) {
+			return;
+		}
+		mNetworkType = networkType;
+
+		mMaxLimit = (networkType == ConnectivityManager.TYPE_WIFI
+				|| networkType == ConnectivityManager.TYPE_ETHERNET) ? MAX_LIMIT_WIFI : MAX_LIMIT_MOBILE;
+		if (mLimit > mMaxLimit) {
+			mLimit = mMaxLimit;
+		}
+		// Latency of the old link is meaningless
+		mMinLatency = Long.MAX_VALUE;
+		mWindowSuccesses = 0;
+	}
+
+	public synchronized int getLimit() {
+		return mLimit;
+	}
+
+	/**
+	 * @return Average throughput of successful downloads in bytes per second
+	 */
+	public synchronized long getThroughput() {
+		return (mTransferTime > 0) ? mBytes * 1000 / mTransferTime : 0;
+	}
+
+	public class Permit {
+		private final long mStart = mClock.elapsedRealtime();
+		private boolean mReleased = false;
+
+		/**
+		 * Report the result of the download, further calls are ignored
+		 *
+		 * @param responseCode HTTP response code or -1 if the request failed
+		 * @param bytes Number of bytes received
+		 */
+		public void release(int responseCode, long bytes) {
+			if (!mReleased) {
+				mReleased = true;
+				DownloadLimiter.this.release(responseCode, mClock.elapsedRealtime() - mStart, bytes);
+			}
+		}
+
+		/**
+		 * Release without a result, for downloads stopped by the client like
+		 * an exhausted bandwidth budget. Doesn't change the limit.
+		 */
+		public void abandon() {
+			release(0, 0);
+		}
+	}
+}
@@ -21,9 +21,9 @@ package com.trellmor.berrymotes.sync;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,7 +41,9 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.support.v4.net.ConnectivityManagerCompat;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.android.BasicLogcatConfigurator;
 import ch.qos.logback.classic.android.ContentProviderAppender;
@@ -51,7 +53,10 @@ import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.FileAppender;
 
 import com.trellmor.berrymotes.util.Settings;
+import com.trellmor.berrymotes.provider.DatabaseConfig;
+import com.trellmor.berrymotes.provider.EmoteIndexSnapshot;
 import com.trellmor.berrymotes.provider.EmotesContract;
+import com.trellmor.berrymotes.provider.EmotesProvider;
 import com.trellmor.berrymotes.provider.LogProvider;
 import com.trellmor.berrymotes.provider.SubredditProvider;
 import com.trellmor.berrymotes.util.NetworkNotAvailableException;
@@ -59,7 +64,9 @@ import com.trellmor.berrymotes.util.StorageNotAvailableException;
 
 public class EmoteDownloader {
 
-	private static final int THREAD_COUNT = 4;
+	// Downloads block their thread, more carriers than concurrent downloads
+	// would only wait for a download permit
+	private static final int CARRIER_COUNT = DownloadLimiter.MAX_LIMIT_WIFI;
 
 	private final Context mContext;
 	private final ContentResolver mContentResolver;
@@ -67,9 +74,15 @@ public class EmoteDownloader {
 
 	private final boolean mWiFiOnly;
 	private int mNetworkType;
+	private boolean mIsMetered;
 	private boolean mIsConnected;
 
 	private SyncResult mSyncResult = null;
+	private SyncStats mSyncStats = null;
+	private long mDeadline = 0;
+	private volatile boolean mBudgetExhausted = false;
+	private final DownloadLimiter mDownloadLimiter = new DownloadLimiter();
+	private final BandwidthBudget mBandwidthBudget;
 
 	private final Logger Log;
 	public static final String LOG_FILE_NAME = "EmoteDownloader.log";
@@ -89,6 +102,24 @@ public class EmoteDownloader {
 		mAllSubreddits = settings.getBoolean(Settings.KEY_SYNC_ALL_SUBREDDITS, true);
 
 		mContentResolver = mContext.getContentResolver();
+		mBandwidthBudget = BandwidthBudget.getInstance(mContext);
+	}
+
+	/**
+	 * Stop starting subreddit jobs after some time, the remaining
+	 * subreddits are synced next time
+	 *
+	 * @param budget Milliseconds, 0 for no limit
+	 */
+	public void setTimeBudget(long budget) {
+		mDeadline = (budget > 0) ? SystemClock.elapsedRealtime() + budget : 0;
+	}
+
+	/**
+	 * @return true if subreddits were skipped because the time budget ran out
+	 */
+	public boolean isBudgetExhausted() {
+		return mBudgetExhausted;
 	}
 
 	public void start(SyncResult syncResult) {
@@ -97,6 +128,7 @@ public class EmoteDownloader {
 		this.updateNetworkInfo();
 
 		mSyncResult = syncResult;
+		mSyncStats = new SyncStats();
 
 		if (!mIsConnected) {
 			Log.error("Network not available");
@@ -110,37 +142,54 @@ public class EmoteDownloader {
 		NetworkReceiver receiver = new NetworkReceiver();
 		mContext.registerReceiver(receiver, filter);
 
-		ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+		// Subreddit jobs and their image downloads, cancelled when the sync
+		// thread is interrupted
+		TaskScope scope = TaskScope.open("sync", CARRIER_COUNT);
 
+		// Keep the emote grid from reloading on every batch
+		mContentResolver.call(EmotesContract.Emote.CONTENT_URI, EmotesProvider.METHOD_BEGIN_SYNC, null, null);
 		try {
 			checkCanDownload();
 
-			Thread thread = new Thread(new SubredditDownloader(mContext, true));
-			thread.start();
-			thread.join();
+			// The emote grid reads the database directly while emotes change
+			EmoteIndexSnapshot.invalidate(mContext);
+
+			// Start with the known subreddits, the list refresh runs alongside
+			// and adds new subreddits to the queue
+			final SyncQueue queue = new SyncQueue(scope);
+			final SubredditDownloader refresh = new SubredditDownloader(mContext, true, queue);
+			scope.fork(new TaskScope.Task() {
+				@Override
+				public void run() {
+					runJob("Subreddit list", refresh);
+				}
+			});
 
 			Cursor c = mContentResolver.query(SubredditProvider.CONTENT_URI_SUBREDDITS, new String[] {
 					SubredditProvider.SubredditColumns._ID,
 					SubredditProvider.SubredditColumns.COLUMN_NAME,
-					SubredditProvider.SubredditColumns.COLUMN_ENABLED}, null, null, null);
+					SubredditProvider.SubredditColumns.COLUMN_ENABLED,
+					SubredditProvider.SubredditColumns.COLUMN_USAGE,
+					SubredditProvider.SubredditColumns.COLUMN_SIZE,
+					SubredditProvider.SubredditColumns.COLUMN_LAST_SYNC}, null, null, null);
 
 			if (c != null && c.getCount() > 0) {
 				c.moveToFirst();
-				ArrayList<String> enabledSubreddits = new ArrayList<>();
-				ArrayList<String> deleteSubreddits = new ArrayList<>();
+				SyncPlanner planner = new SyncPlanner(System.currentTimeMillis());
 
 				final int POS_ID = c.getColumnIndex(SubredditProvider.SubredditColumns._ID);
 				final int POS_NAME = c.getColumnIndex(SubredditProvider.SubredditColumns.COLUMN_NAME);
 				final int POS_ENABLED = c.getColumnIndex(SubredditProvider.SubredditColumns.COLUMN_ENABLED);
+				final int POS_USAGE = c.getColumnIndex(SubredditProvider.SubredditColumns.COLUMN_USAGE);
+				final int POS_SIZE = c.getColumnIndex(SubredditProvider.SubredditColumns.COLUMN_SIZE);
+				final int POS_LAST_SYNC = c.getColumnIndex(SubredditProvider.SubredditColumns.COLUMN_LAST_SYNC);
 
 				do {
-					if (mAllSubreddits || c.getInt(POS_ENABLED) == 1) {
-						Runnable subredditEmoteDownloader = new SubredditEmoteDownloader(
-								mContext, this, c.getString(POS_NAME));
-						executor.execute(subredditEmoteDownloader);
-						enabledSubreddits.add(c.getString(POS_NAME));
+					boolean enabled = c.getInt(POS_ENABLED) == 1;
+					if (mAllSubreddits || enabled) {
+						planner.add(c.getString(POS_NAME), enabled, c.getLong(POS_USAGE),
+								c.getLong(POS_SIZE), c.getLong(POS_LAST_SYNC));
 					} else {
-						deleteSubreddits.add(c.getString(POS_NAME));
 						// Reset last download date
 						Uri uri = SubredditProvider.CONTENT_URI_SUBREDDITS.buildUpon().appendPath(String.valueOf(c.getInt(POS_ID))).build();
 						ContentValues values = new ContentValues();
@@ -149,55 +198,55 @@ public class EmoteDownloader {
 					}
 				} while (c.moveToNext());
 
-				Cursor cursorCurrent = mContentResolver.query(EmotesContract.Emote.CONTENT_URI_DISTINCT,
-						new String[]{EmotesContract.Emote.COLUMN_SUBREDDIT}, null, null, null);
-
-				if (cursorCurrent != null && cursorCurrent.getCount() > 0) {
-					cursorCurrent.moveToFirst();
+				// Most used subreddits first, the scope starts jobs in order
+				for (String subreddit : planner.plan()) {
+					queue.add(subreddit);
+				}
+			}
+			if (c != null) {
+				c.close();
+			}
 
-					final int POS_SUBREDDIT = cursorCurrent.getColumnIndex(EmotesContract.Emote.COLUMN_SUBREDDIT);
+			// Waits for the refresh and every job it added, this thread
+			// works on queued jobs meanwhile
+			scope.join();
 
-					do {
-						String subreddit = cursorCurrent.getString(POS_SUBREDDIT);
-						if (!enabledSubreddits.contains(subreddit)) {
-							if (!deleteSubreddits.contains(subreddit)) {
-								deleteSubreddits.add(subreddit);
-							}
-						}
-					} while (cursorCurrent.moveToNext());
-				}
+			deleteStaleSubreddits();
 
-				for (String subreddit : deleteSubreddits) {
-					// Delete this subreddit
-					deleteSubreddit(subreddit, mContentResolver);
-				}
+			try {
+				EmoteIndexSnapshot.write(mContext);
+				mContentResolver.notifyChange(EmotesContract.Emote.CONTENT_URI, null, false);
+			} catch (IOException e) {
+				Log.warn("Error writing emote index: " + e.getMessage(), e);
 			}
-			executor.shutdown();
-			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
 		}  catch (IOException e) {
 			Log.error("Error reading from network: " + e.getMessage(), e);
-			synchronized (mSyncResult) {
-				mSyncResult.stats.numIoExceptions++;
-				if (mSyncResult.delayUntil < 30 * 60)
-					mSyncResult.delayUntil = 30 * 60;
-			}
+			mSyncStats.increment(SyncStats.IO_EXCEPTIONS);
+			mSyncStats.delayAtLeast(30 * 60);
+		} catch (ExecutionException e) {
+			Log.error("Sync job failed: " + e.getCause().getMessage(), e.getCause());
+			mSyncStats.increment(SyncStats.IO_EXCEPTIONS);
+			mSyncStats.delayAtLeast(30 * 60);
 		} catch (InterruptedException e) {
-			synchronized (mSyncResult) {
-				syncResult.moreRecordsToGet = true;
-			}
+			// The scope cancelled all jobs
+			mSyncStats.setFlag(SyncStats.MORE_RECORDS_TO_GET);
 
 			Log.info("Sync interrupted");
 
-			executor.shutdownNow();
-			try {
-				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
-			} catch (InterruptedException e2) {
-			}
-
 			Thread.currentThread().interrupt();
 		} finally {
+			// Waits for cancelled jobs to stop
+			scope.close();
+			mSyncStats.foldInto(mSyncResult);
+
 			Log.info("Deleted emotes: {}", mSyncResult.stats.numDeletes);
 			Log.info("Added emotes: {}", mSyncResult.stats.numInserts);
+			Log.info("Download limit: {}, throughput: {} KB/s", mDownloadLimiter.getLimit(),
+					mDownloadLimiter.getThroughput() / 1024);
+			Log.info("Database lock waits: {}", DatabaseConfig.getLockWaitStats());
+			Log.info("Bandwidth used: {}", mBandwidthBudget.getUsageReport());
+
+			mContentResolver.call(EmotesContract.Emote.CONTENT_URI, EmotesProvider.METHOD_END_SYNC, null, null);
 
 			// Unregisters BroadcastReceiver at the end
 			mContext.unregisterReceiver(receiver);
@@ -206,6 +255,114 @@ public class EmoteDownloader {
 		Log.info("EmoteDownload finished");
 	}
 
+	/**
+	 * Run a job of the root scope. A failed job is counted instead of
+	 * failing the scope, which would cancel all other subreddits.
+	 */
+	private void runJob(String name, Runnable job) {
+		try {
+			job.run();
+		} catch (RuntimeException e) {
+			Log.error(name + ": Sync job failed: " + e.getMessage(), e);
+			mSyncStats.increment(SyncStats.IO_EXCEPTIONS);
+			mSyncStats.delayAtLeast(30 * 60);
+		}
+	}
+
+	/**
+	 * Delete the emotes of subreddits that are gone or disabled, call after
+	 * all subreddit jobs finished
+	 */
+	private void deleteStaleSubreddits() throws IOException {
+		Cursor c = mContentResolver.query(SubredditProvider.CONTENT_URI_SUBREDDITS,
+				new String[] { SubredditProvider.SubredditColumns._ID }, null, null, null);
+		if (c == null) {
+			return;
+		}
+		boolean known = c.getCount() > 0;
+		c.close();
+		if (!known) {
+			// Subreddit list was never loaded, don't drop all emotes
+			return;
+		}
+
+		// One indexed join
+		String stale = SubredditProvider.SubredditColumns.TABLE_SUBREDDITS + "."
+				+ SubredditProvider.SubredditColumns._ID + " IS NULL";
+		if (!mAllSubreddits) {
+			stale += " OR " + SubredditProvider.SubredditColumns.TABLE_SUBREDDITS + "."
+					+ SubredditProvider.SubredditColumns.COLUMN_ENABLED + "=0";
+		}
+		ArrayList<String> deleteSubreddits = new ArrayList<>();
+		c = mContentResolver.query(SubredditProvider.CONTENT_URI_EMOTE_SUBREDDITS,
+				new String[] { EmotesContract.Emote.TABLE_NAME + "." + EmotesContract.Emote.COLUMN_SUBREDDIT },
+				stale, null, null);
+		if (c != null) {
+			while (c.moveToNext()) {
+				deleteSubreddits.add(c.getString(0));
+			}
+			c.close();
+		}
+
+		for (String subreddit : deleteSubreddits) {
+			// Delete this subreddit
+			deleteSubreddit(subreddit, mContentResolver);
+		}
+	}
+
+	/**
+	 * Subreddit jobs of one sync, takes new and removed subreddits from the
+	 * list refresh while the jobs run
+	 */
+	private class SyncQueue implements SubredditDownloader.Listener {
+		private final TaskScope mScope;
+		private final HashSet<String> mQueued = new HashSet<>();
+		private final HashSet<String> mRemoved = new HashSet<>();
+
+		public SyncQueue(TaskScope scope) {
+			mScope = scope;
+		}
+
+		public void add(final String subreddit) {
+			synchronized (this) {
+				if (mRemoved.contains(subreddit) || !mQueued.add(subreddit)) {
+					return;
+				}
+			}
+
+			final Runnable job = new SubredditEmoteDownloader(mContext, EmoteDownloader.this, subreddit, mScope);
+			// Not queued if the sync was cancelled
+			mScope.fork(new TaskScope.Task() {
+				@Override
+				public void run() {
+					synchronized (SyncQueue.this) {
+						if (mRemoved.contains(subreddit)) {
+							return;
+						}
+					}
+					if (mDeadline > 0 && SystemClock.elapsedRealtime() > mDeadline) {
+						mBudgetExhausted = true;
+						return;
+					}
+					runJob(subreddit, job);
+				}
+			});
+		}
+
+		@Override
+		public void onSubredditsChanged(List<String> added, List<String> removed) {
+			synchronized (this) {
+				mRemoved.addAll(removed);
+			}
+			if (mAllSubreddits) {
+				// New subreddits are not enabled yet
+				for (String subreddit : added) {
+					add(subreddit);
+				}
+			}
+		}
+	}
+
 	public void deleteSubreddit(String subreddit, ContentResolver contentResolver) throws IOException {
 
 		Log.debug("Removing emotes of {}", subreddit);
@@ -215,29 +372,28 @@ public class EmoteDownloader {
 				EmotesContract.Emote.COLUMN_SUBREDDIT + "=?",
 				new String[] { subreddit }, null);
 
+		EmoteFiles files = new EmoteFiles();
 		if (c.moveToFirst()) {
 			final int POS_IMAGE = c.getColumnIndex(EmotesContract.Emote.COLUMN_IMAGE);
 
 			do {
-				checkStorageAvailable();
-				File file = new File(c.getString(POS_IMAGE));
-				if (file.exists()) {
-					file.delete();
-				}
+				files.delete(new File(c.getString(POS_IMAGE)));
 			} while (c.moveToNext());
 		}
 
 		c.close();
 
+		checkStorageAvailable();
+		files.deleteQueued();
+
 		int deletes = mContentResolver.delete(EmotesContract.Emote.CONTENT_URI,
 				EmotesContract.Emote.COLUMN_SUBREDDIT + "=?",
 				new String[] { subreddit });
 		if (deletes > 0) {
 			Log.info("{} deleted, removed {} emotes", subreddit, deletes);
 		}
-		synchronized (mSyncResult) {
-			mSyncResult.stats.numDeletes += deletes;
-		}
+		new SyncJournal(mContext, subreddit).clear();
+		mSyncStats.add(SyncStats.DELETES, deletes);
 	}
 
 	private void updateNetworkInfo() {
@@ -250,9 +406,12 @@ public class EmoteDownloader {
 
 			if (networkInfo != null) {
 				mNetworkType = networkInfo.getType();
+				mDownloadLimiter.setNetworkType(mNetworkType);
 			} else {
 				mNetworkType = Integer.MIN_VALUE;
 			}
+			mIsMetered = ConnectivityManagerCompat.isActiveNetworkMetered(cm);
+			mBandwidthBudget.setNetwork(mNetworkType, mIsMetered);
 		}
 	}
 
@@ -264,15 +423,25 @@ public class EmoteDownloader {
 
 	private boolean isAllowedNetworkType() {
 		synchronized (this) {
-			return !(mWiFiOnly && mNetworkType != ConnectivityManager.TYPE_WIFI);
+			// Same check as the scheduler, Wi-Fi only allows any unmetered
+			// network like ethernet
+			return !(mWiFiOnly && mIsMetered);
 		}
 	}
 
+	public BandwidthBudget getBandwidthBudget() {
+		return mBandwidthBudget;
+	}
+
+	public DownloadLimiter getDownloadLimiter() {
+		return mDownloadLimiter;
+	}
+
 	public void checkCanDownload() throws IOException {
 		if (!this.isConnected()) {
 			throw new NetworkNotAvailableException("No network connection");
 		} else if (!this.isAllowedNetworkType()) {
-			throw new NetworkNotAvailableException("Downloading on mobile is disabled");
+			throw new NetworkNotAvailableException("Downloading on metered networks is disabled");
 		}
 	}
 
@@ -333,32 +502,8 @@ public class EmoteDownloader {
 		}
 	}
 
-	public void updateSyncResult(SyncResult syncResult) {
-		synchronized (mSyncResult) {
-			mSyncResult.stats.numAuthExceptions = syncResult.stats.numAuthExceptions;
-			mSyncResult.stats.numIoExceptions = syncResult.stats.numIoExceptions;
-			mSyncResult.stats.numParseExceptions = syncResult.stats.numParseExceptions;
-			mSyncResult.stats.numConflictDetectedExceptions = syncResult.stats.numConflictDetectedExceptions;
-			mSyncResult.stats.numInserts = syncResult.stats.numInserts;
-			mSyncResult.stats.numUpdates = syncResult.stats.numUpdates;
-			mSyncResult.stats.numDeletes = syncResult.stats.numDeletes;
-			mSyncResult.stats.numEntries = syncResult.stats.numEntries;
-			mSyncResult.stats.numSkippedEntries = syncResult.stats.numSkippedEntries;
-
-			if (syncResult.tooManyDeletions)
-				mSyncResult.tooManyDeletions = true;
-			if (syncResult.tooManyRetries)
-				mSyncResult.tooManyRetries = true;
-			if (syncResult.fullSyncRequested)
-				mSyncResult.fullSyncRequested = true;
-			if (syncResult.partialSyncUnavailable)
-				mSyncResult.partialSyncUnavailable = true;
-			if (syncResult.moreRecordsToGet)
-				mSyncResult.moreRecordsToGet = true;
-
-			if (mSyncResult.delayUntil < syncResult.delayUntil)
-				mSyncResult.delayUntil = syncResult.delayUntil;
-		}
+	SyncStats getSyncStats() {
+		return mSyncStats;
 	}
 
 	public class NetworkReceiver extends BroadcastReceiver {
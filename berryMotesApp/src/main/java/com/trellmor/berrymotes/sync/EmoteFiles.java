@@ -0,0 +1,101 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * In memory view of the emote image directories.
+ *
+ * Every directory is listed once, existence checks are answered from the
+ * listing and deletes are queued and run together by {@link #deleteQueued()}.
+ * Each subreddit job uses its own instance, shared by its image downloads.
+ */
+class EmoteFiles {
+	private final HashMap<File, HashSet<String>> mListings = new HashMap<>();
+	private final HashSet<File> mMissingDirs = new HashSet<>();
+	private final ArrayList<File> mDeletes = new ArrayList<>();
+
+	public synchronized boolean exists(File file) {
+		return list(file).contains(file.getName());
+	}
+
+	/**
+	 * Create the parent directory of a file if the listing didn't find it
+	 */
+	public synchronized void mkdirs(File file) {
+		File dir = file.getAbsoluteFile().getParentFile();
+		list(file);
+		if (mMissingDirs.remove(dir)) {
+			dir.mkdirs();
+		}
+	}
+
+	/**
+	 * Record a file that was written after the directory was listed
+	 */
+	public synchronized void added(File file) {
+		list(file).add(file.getName());
+	}
+
+	/**
+	 * Queue a file for deletion if it exists
+	 */
+	public synchronized void delete(File file) {
+		if (list(file).remove(file.getName())) {
+			mDeletes.add(file);
+		}
+	}
+
+	/**
+	 * Delete all queued files
+	 *
+	 * @return Number of deleted files
+	 */
+	public synchronized int deleteQueued() {
+		int deleted = 0;
+		for (File file : mDeletes) {
+			if (file.delete()) {
+				deleted++;
+			}
+		}
+		mDeletes.clear();
+		return deleted;
+	}
+
+	private HashSet<String> list(File file) {
+		File dir = file.getAbsoluteFile().getParentFile();
+		HashSet<String> names = mListings.get(dir);
+		if (names == null) {
+			names = new HashSet<>();
+			String[] files = dir.list();
+			if (files != null) {
+				Collections.addAll(names, files);
+			} else {
+				mMissingDirs.add(dir);
+			}
+			mListings.put(dir, names);
+		}
+		return names;
+	}
+}
@@ -29,6 +29,20 @@ class EmoteImage {
 	private String sr;
 	private List<String> names;
 
+	EmoteImage() {
+	}
+
+	EmoteImage(boolean apng, int delay, int index, String hash, String image,
+			String sr, List<String> names) {
+		this.apng = apng;
+		this.delay = delay;
+		this.index = index;
+		this.hash = hash;
+		this.image = image;
+		this.sr = sr;
+		this.names = names;
+	}
+
 	public boolean isApng() {
 		return apng;
 	}
@@ -0,0 +1,223 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming decoder for the emotes.json.gz and subreddits.json.gz schemas.
+ *
+ * Replaces reflection based Gson binding. Repeated strings (like the subreddit
+ * of every emote) are interned per decoder, so one instance should be used for
+ * one list only.
+ */
+class EmoteListDecoder {
+	private final Logger Log = LoggerFactory.getLogger(EmoteListDecoder.class);
+
+	private final HashMap<String, String> mStrings = new HashMap<>();
+	private final HashMap<String, Long> mDates = new HashMap<>();
+	private SimpleDateFormat mDateFormat = null;
+
+	public interface SubredditListener {
+		/**
+		 * Called for every subreddit while the list is read
+		 */
+		void onSubreddit(Subreddit subreddit);
+	}
+
+	/**
+	 * Read an array of emotes
+	 *
+	 * @param reader JSON reader positioned in front of the array
+	 * @param emotesByHash Filled with the first emote for every hash
+	 * @return All emotes in list order
+	 */
+	public ArrayList<EmoteImage> readEmotes(JsonReader reader,
+			Map<String, EmoteImage> emotesByHash) throws IOException {
+		ArrayList<EmoteImage> emotes = new ArrayList<>();
+
+		reader.beginArray();
+		while (reader.hasNext()) {
+			EmoteImage emote = readEmote(reader);
+			emotes.add(emote);
+
+			EmoteImage collision = emotesByHash.get(emote.getHash());
+			if (collision == null) {
+				emotesByHash.put(emote.getHash(), emote);
+			} else {
+				Log.error("{}: Hash collision! " + emote.getImage() + " ("
+						+ emote.getHash() + ") <-> "
+						+ collision.getImage() + " ("
+						+ collision.getHash() + ")", emote.getSubreddit());
+			}
+		}
+		reader.endArray();
+
+		return emotes;
+	}
+
+	private EmoteImage readEmote(JsonReader reader) throws IOException {
+		boolean apng = false;
+		int delay = 0;
+		int index = 0;
+		String hash = null;
+		String image = null;
+		String sr = null;
+		List<String> names = null;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String key = reader.nextName();
+			if (reader.peek() == JsonToken.NULL) {
+				reader.skipValue();
+				continue;
+			}
+
+			switch (key) {
+				case "apng":
+					apng = reader.nextBoolean();
+					break;
+				case "delay":
+					delay = reader.nextInt();
+					break;
+				case "index":
+					index = reader.nextInt();
+					break;
+				case "hash":
+					hash = reader.nextString();
+					break;
+				case "image":
+					image = reader.nextString();
+					break;
+				case "sr":
+					sr = intern(reader.nextString());
+					break;
+				case "names":
+					names = readNames(reader);
+					break;
+				default:
+					reader.skipValue();
+					break;
+			}
+		}
+		reader.endObject();
+
+		if (names == null) {
+			names = new ArrayList<>(0);
+		}
+
+		return new EmoteImage(apng, delay, index, hash, image, sr, names);
+	}
+
+	private List<String> readNames(JsonReader reader) throws IOException {
+		// Most emotes only have one or two names
+		ArrayList<String> names = new ArrayList<>(2);
+		reader.beginArray();
+		while (reader.hasNext()) {
+			names.add(reader.nextString());
+		}
+		reader.endArray();
+		return names;
+	}
+
+	/**
+	 * Read an array of subreddits without keeping them
+	 *
+	 * @param reader JSON reader positioned in front of the array
+	 * @param listener Gets the subreddits in list order
+	 */
+	public void readSubreddits(JsonReader reader, SubredditListener listener) throws IOException {
+		reader.beginArray();
+		while (reader.hasNext()) {
+			listener.onSubreddit(readSubreddit(reader));
+		}
+		reader.endArray();
+	}
+
+	private Subreddit readSubreddit(JsonReader reader) throws IOException {
+		String name = null;
+		long added = 0;
+		long size = 0;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String key = reader.nextName();
+			if (reader.peek() == JsonToken.NULL) {
+				reader.skipValue();
+				continue;
+			}
+
+			switch (key) {
+				case "name":
+					name = reader.nextString();
+					break;
+				case "added":
+					// Only a few distinct dates in the list
+					added = parseDate(reader.nextString());
+					break;
+				case "size":
+					size = reader.nextLong();
+					break;
+				default:
+					reader.skipValue();
+					break;
+			}
+		}
+		reader.endObject();
+
+		return new Subreddit(name, added, size);
+	}
+
+	private long parseDate(String value) {
+		Long date = mDates.get(value);
+		if (date == null) {
+			if (mDateFormat == null) {
+				mDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+			}
+			try {
+				date = mDateFormat.parse(value).getTime();
+			} catch (ParseException e) {
+				date = 0L;
+			}
+			mDates.put(value, date);
+		}
+		return date;
+	}
+
+	private String intern(String value) {
+		String interned = mStrings.get(value);
+		if (interned == null) {
+			mStrings.put(value, value);
+			interned = value;
+		}
+		return interned;
+	}
+}
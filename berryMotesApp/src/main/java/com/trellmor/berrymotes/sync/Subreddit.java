@@ -18,26 +18,32 @@
 
 package com.trellmor.berrymotes.sync;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 
 public class Subreddit {
 	private String name;
-	private String added;
+	private long added;
 	private long size;
 
+	Subreddit() {
+	}
+
+	Subreddit(String name, long added, long size) {
+		this.name = name;
+		this.added = added;
+		this.size = size;
+	}
+
 	public String getName() {
 		return name;
 	}
 
 	public Date getAdded() {
-		try {
-			SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-			return dateFormat.parse(added);
-		} catch (ParseException e) {
-			return new Date(0);
-		}
+		return new Date(added);
+	}
+
+	public long getAddedTime() {
+		return added;
 	}
 
 	public long getSize() {
@@ -0,0 +1,106 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.trellmor.berrymotes.sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Compares a streamed subreddit list with the stored rows.
+ *
+ * Fill in the stored rows with {@link #addExisting}, then pass every listed
+ * subreddit to {@link #onSubreddit}. New names are added, rows with a
+ * different size or date are changed and stored rows that were not listed
+ * are removed. Duplicate and unnamed list entries are ignored.
+ */
+final class SubredditDiff implements EmoteListDecoder.SubredditListener {
+	private final HashMap<String, Row> mExisting = new HashMap<>();
+	private final HashSet<String> mSeen = new HashSet<>();
+	private final ArrayList<Subreddit> mAdded = new ArrayList<>();
+	private final ArrayList<Change> mChanged = new ArrayList<>();
+
+	public void addExisting(long id, String name, long size, long added) {
+		mExisting.put(name, new Row(id, name, size, added));
+	}
+
+	@Override
+	public void onSubreddit(Subreddit subreddit) {
+		String name = subreddit.getName();
+		if (name == null || !mSeen.add(name)) {
+			return;
+		}
+
+		Row row = mExisting.remove(name);
+		if (row == null) {
+			mAdded.add(subreddit);
+		} else if (row.size != subreddit.getSize() || row.added != subreddit.getAddedTime()) {
+			mChanged.add(new Change(row.id, subreddit));
+		}
+	}
+
+	/**
+	 * @return Listed subreddits without a stored row, in list order
+	 */
+	public List<Subreddit> getAdded() {
+		return mAdded;
+	}
+
+	/**
+	 * @return Stored rows that need the listed size and date, in list order
+	 */
+	public List<Change> getChanged() {
+		return mChanged;
+	}
+
+	/**
+	 * @return Stored rows that were not listed, only complete once the
+	 * whole list was read
+	 */
+	public Collection<Row> getRemoved() {
+		return mExisting.values();
+	}
+
+	static final class Row {
+		final long id;
+		final String name;
+		final long size;
+		final long added;
+
+		Row(long id, String name, long size, long added) {
+			this.id = id;
+			this.name = name;
+			this.size = size;
+			this.added = added;
+		}
+	}
+
+	static final class Change {
+		final long id;
+		final Subreddit subreddit;
+
+		Change(long id, Subreddit subreddit) {
+			this.id = id;
+			this.subreddit = subreddit;
+		}
+	}
+}
@@ -19,7 +19,6 @@
 package com.trellmor.berrymotes.sync;
 
 import android.content.ContentProviderOperation;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
@@ -28,9 +27,9 @@ import android.net.Uri;
 import android.os.RemoteException;
 import android.preference.PreferenceManager;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 import com.trellmor.berrymotes.api.Endpoints;
+import com.trellmor.berrymotes.util.BandwidthExhaustedException;
 import com.trellmor.berrymotes.util.Settings;
 import com.trellmor.berrymotes.provider.SubredditProvider;
 
@@ -40,12 +39,12 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -59,14 +58,27 @@ public class SubredditDownloader implements Runnable {
 	private final boolean sWait;
 
 	private final Context mContext;
+	private final Listener mListener;
+
+	public interface Listener {
+		/**
+		 * Called on the downloader thread after changes to the subreddit list
+		 * were written
+		 *
+		 * @param added Names of new subreddits
+		 * @param removed Names of subreddits that are no longer listed
+		 */
+		void onSubredditsChanged(List<String> added, List<String> removed);
+	}
 
 	public SubredditDownloader(Context context) {
-		this(context, false);
+		this(context, false, null);
 	}
 
-	public SubredditDownloader(Context context, boolean wait) {
+	public SubredditDownloader(Context context, boolean wait, Listener listener) {
 		mContext = context;
 		sWait = wait;
+		mListener = listener;
 	}
 
 	@Override
@@ -77,6 +89,10 @@ public class SubredditDownloader implements Runnable {
 			return;
 		}
 		try {
+			BandwidthBudget budget = BandwidthBudget.getInstance(mContext);
+			budget.updateNetwork(mContext);
+			budget.checkAvailable(BandwidthBudget.PRIORITY_LIST);
+
 			URL url = new URL(Endpoints.SYNC + SUBREDDITS);
 			HttpURLConnection con = (HttpURLConnection) url.openConnection();
 			try {
@@ -86,22 +102,26 @@ public class SubredditDownloader implements Runnable {
 					case HttpURLConnection.HTTP_OK:
 						Log.debug("{} loaded", SUBREDDITS);
 
-						InputStream is = con.getInputStream();
+						InputStream is = budget.wrap(con.getInputStream(), BandwidthBudget.PRIORITY_LIST);
 						GZIPInputStream zis = null;
 						Reader isr = null;
-						List<Subreddit> subreddits;
+						JsonReader jsonReader = null;
+						SubredditUpdate update = new SubredditUpdate();
 						try {
 							zis = new GZIPInputStream(is);
 							isr = new InputStreamReader(zis, "UTF-8");
+							jsonReader = new JsonReader(isr);
 
-							Gson gson = new Gson();
-							subreddits = gson.fromJson(isr, new TypeToken<ArrayList<Subreddit>>(){}.getType());
+							// Compared with the database while parsing, the
+							// list itself is not kept
+							new EmoteListDecoder().readSubreddits(jsonReader, update);
 						} finally {
+							StreamUtils.closeStream(jsonReader);
 							StreamUtils.closeStream(isr);
 							StreamUtils.closeStream(zis);
 							StreamUtils.closeStream(is);
 						}
-						updateSubreddits(subreddits);
+						update.apply();
 						SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(mContext).edit();
 						editor.putLong(Settings.KEY_SYNC_LAST_MODIFIED, con.getLastModified());
 						editor.commit();
@@ -117,6 +137,12 @@ public class SubredditDownloader implements Runnable {
 			}
 		} catch (MalformedURLException e) {
 			Log.error("Emotes URL is malformed", e);
+		} catch (BandwidthExhaustedException e) {
+			Log.info(e.getMessage());
+		} catch (InterruptedIOException e) {
+			Log.info("Subreddit list refresh interrupted");
+			// Let the sync see the cancellation
+			Thread.currentThread().interrupt();
 		} catch (IOException e) {
 			Log.error("Error reading from network: " + e.getMessage(), e);
 		} finally {
@@ -124,59 +150,92 @@ public class SubredditDownloader implements Runnable {
 		}
 	}
 
-	private void updateSubreddits(List<Subreddit> subreddits) {
-		ContentResolver resolver = mContext.getContentResolver();
-		Cursor c = resolver.query(SubredditProvider.CONTENT_URI_SUBREDDITS, new String[]{
-				SubredditProvider.SubredditColumns._ID,
-				SubredditProvider.SubredditColumns.COLUMN_NAME
-		}, null, null, null);
-
-		HashMap<String, Subreddit> subredditHash = new HashMap<>();
-		for (Subreddit subreddit : subreddits) {
-			subredditHash.put(subreddit.getName(), subreddit);
+	/**
+	 * Apply a streamed subreddit list to the database, only rows that changed
+	 * are written
+	 */
+	private class SubredditUpdate implements EmoteListDecoder.SubredditListener {
+		private final SubredditDiff mDiff = new SubredditDiff();
+
+		public SubredditUpdate() {
+			Cursor c = mContext.getContentResolver().query(SubredditProvider.CONTENT_URI_SUBREDDITS, new String[]{
+					SubredditProvider.SubredditColumns._ID,
+					SubredditProvider.SubredditColumns.COLUMN_NAME,
+					SubredditProvider.SubredditColumns.COLUMN_SIZE,
+					SubredditProvider.SubredditColumns.COLUMN_ADDED
+			}, null, null, null);
+
+			if (c != null) {
+				try {
+					final int POS_ID = c.getColumnIndex(SubredditProvider.SubredditColumns._ID);
+					final int POS_NAME = c.getColumnIndex(SubredditProvider.SubredditColumns.COLUMN_NAME);
+					final int POS_SIZE = c.getColumnIndex(SubredditProvider.SubredditColumns.COLUMN_SIZE);
+					final int POS_ADDED = c.getColumnIndex(SubredditProvider.SubredditColumns.COLUMN_ADDED);
+
+					while (c.moveToNext()) {
+						mDiff.addExisting(c.getLong(POS_ID), c.getString(POS_NAME),
+								c.getLong(POS_SIZE), c.getLong(POS_ADDED));
+					}
+				} finally {
+					c.close();
+				}
+			}
 		}
 
-		ArrayList<ContentProviderOperation> batch = new ArrayList<>();
-
-		if (c != null && c.getCount() > 0) {
-			c.moveToFirst();
-
-			final int POS_ID = c.getColumnIndex(SubredditProvider.SubredditColumns._ID);
-			final int POS_NAME = c.getColumnIndex(SubredditProvider.SubredditColumns.COLUMN_NAME);
+		@Override
+		public void onSubreddit(Subreddit subreddit) {
+			mDiff.onSubreddit(subreddit);
+		}
 
-			do {
-				String name = c.getString(POS_NAME);
-				if (subredditHash.containsKey(name)) {
-					Subreddit subreddit = subredditHash.get(name);
+		/**
+		 * Write all changes, call after the whole list was read
+		 */
+		public void apply() {
+			ArrayList<ContentProviderOperation> batch = new ArrayList<>();
+			ArrayList<String> added = new ArrayList<>();
+			ArrayList<String> removed = new ArrayList<>();
+
+			for (Subreddit subreddit : mDiff.getAdded()) {
+				batch.add(ContentProviderOperation
+						.newInsert(SubredditProvider.CONTENT_URI_SUBREDDITS)
+						.withValue(SubredditProvider.SubredditColumns.COLUMN_NAME, subreddit.getName())
+						.withValue(SubredditProvider.SubredditColumns.COLUMN_ADDED, subreddit.getAddedTime())
+						.withValue(SubredditProvider.SubredditColumns.COLUMN_SIZE, subreddit.getSize())
+						.build());
+				added.add(subreddit.getName());
+			}
+			for (SubredditDiff.Change change : mDiff.getChanged()) {
+				batch.add(ContentProviderOperation.newUpdate(getUri(change.id))
+						.withValue(SubredditProvider.SubredditColumns.COLUMN_SIZE, change.subreddit.getSize())
+						.withValue(SubredditProvider.SubredditColumns.COLUMN_ADDED, change.subreddit.getAddedTime())
+						.build());
+			}
+			for (SubredditDiff.Row row : mDiff.getRemoved()) {
+				batch.add(ContentProviderOperation.newDelete(getUri(row.id)).build());
+				removed.add(row.name);
+			}
 
-					batch.add(ContentProviderOperation.newUpdate(
-							SubredditProvider.CONTENT_URI_SUBREDDITS.buildUpon().appendPath(String.valueOf(c.getInt(POS_ID))).build())
-							.withValue(SubredditProvider.SubredditColumns.COLUMN_SIZE, subreddit.getSize())
-							.withValue(SubredditProvider.SubredditColumns.COLUMN_ADDED, subreddit.getAdded().getTime())
-							.build());
+			Log.info("Subreddits: {} added, {} changed, {} removed", added.size(),
+					mDiff.getChanged().size(), removed.size());
+			if (batch.isEmpty()) {
+				return;
+			}
 
-					subredditHash.remove(name);
-				} else {
-					Uri subredditUri = SubredditProvider.CONTENT_URI_SUBREDDITS.buildUpon().appendPath(String.valueOf(c.getInt(POS_ID))).build();
-					batch.add(ContentProviderOperation.newDelete(subredditUri).build());
-				}
-			} while (c.moveToNext());
-		}
+			try {
+				// The provider notifies once for the whole batch
+				mContext.getContentResolver().applyBatch(SubredditProvider.CONTENT_AUTHORITY, batch);
+			} catch (RemoteException | OperationApplicationException e) {
+				Log.error("Error updating database: " + e.getMessage(), e);
+				return;
+			}
 
-		for (Subreddit subreddit : subredditHash.values()) {
-			batch.add(ContentProviderOperation
-					.newInsert(SubredditProvider.CONTENT_URI_SUBREDDITS)
-					.withValue(SubredditProvider.SubredditColumns.COLUMN_NAME, subreddit.getName())
-					.withValue(SubredditProvider.SubredditColumns.COLUMN_ADDED, subreddit.getAdded().getTime())
-					.withValue(SubredditProvider.SubredditColumns.COLUMN_SIZE, subreddit.getSize())
-					.build());
+			if (mListener != null && (!added.isEmpty() || !removed.isEmpty())) {
+				mListener.onSubredditsChanged(added, removed);
+			}
 		}
 
-		try {
-			resolver.applyBatch(SubredditProvider.CONTENT_AUTHORITY, batch);
-			resolver.notifyChange(SubredditProvider.CONTENT_URI_SUBREDDITS, null, false);
-		} catch (RemoteException | OperationApplicationException e) {
-			Log.error("Error updating database: " + e.getMessage(), e);
+		private Uri getUri(long id) {
+			return SubredditProvider.CONTENT_URI_SUBREDDITS.buildUpon().appendPath(String.valueOf(id)).build();
 		}
 	}
 }
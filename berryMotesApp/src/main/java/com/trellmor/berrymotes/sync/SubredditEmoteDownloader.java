@@ -32,6 +32,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.zip.GZIPInputStream;
 
 import org.slf4j.Logger;
@@ -42,15 +43,14 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
-import android.content.SyncResult;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.RemoteException;
 
-import com.google.gson.Gson;
 import com.google.gson.stream.JsonReader;
 import com.trellmor.berrymotes.provider.EmotesContract;
 import com.trellmor.berrymotes.provider.SubredditProvider;
+import com.trellmor.berrymotes.util.BandwidthExhaustedException;
 import com.trellmor.berrymotes.util.DownloadException;
 import com.trellmor.berrymotes.api.Endpoints;
 
@@ -63,12 +63,19 @@ class SubredditEmoteDownloader implements Runnable {
 	private final String mSubreddit;
 	private Date mLastModified;
 	private final File mBaseDir;
-	private final SyncResult mSyncResult;
+	private final SyncStats mStats;
+	// An emote failed to download, the subreddit is synced again next time
+	private volatile boolean mHasError = false;
+	private final TaskScope mSyncScope;
+	// Image downloads of this subreddit, open while the job runs
+	private TaskScope mScope = null;
+	private final SyncJournal mJournal;
+	private final EmoteFiles mFiles = new EmoteFiles();
 
 	private static final String EMOTES = "/emotes.json.gz";
 
 	public SubredditEmoteDownloader(Context context,
-			EmoteDownloader emoteDownloader, String subreddit) {
+			EmoteDownloader emoteDownloader, String subreddit, TaskScope syncScope) {
 		mContext = context;
 		mEmoteDownloader = emoteDownloader;
 		mSubreddit = subreddit;
@@ -89,11 +96,14 @@ class SubredditEmoteDownloader implements Runnable {
 			mLastModified = new Date(0);
 		}
 
-		mSyncResult = new SyncResult();
+		mStats = mEmoteDownloader.getSyncStats();
+		mSyncScope = syncScope;
+		mJournal = new SyncJournal(mContext, mSubreddit);
 	}
 
 	@Override
 	public void run() {
+		mScope = mSyncScope.openChild();
 		try {
 			List<EmoteImage> emotes = this.getEmoteList();
 
@@ -103,32 +113,41 @@ class SubredditEmoteDownloader implements Runnable {
 				this.updateEmotes(emotes);
 
 				// If everything is ok, update the last modified date
-				if (!mSyncResult.hasError()) {
+				if (!mHasError) {
 					Log.debug("{}: Updating LAST_MODIFIED time to {}", mSubreddit, mLastModified);
 
 					ContentValues values = new ContentValues();
 					values.put(SubredditProvider.SubredditColumns.COLUMN_LAST_SYNC, mLastModified.getTime());
 					mContentResolver.update(SubredditProvider.CONTENT_URI_SUBREDDITS, values,
 							SubredditProvider.SubredditColumns.COLUMN_NAME + " =?", new String[]{mSubreddit});
+
+					mJournal.clear();
 				}
 			}
 		} catch (URISyntaxException e) {
 			Log.error(mSubreddit + ": Emotes URL is malformed", e);
-			mSyncResult.stats.numParseExceptions++;
-			mSyncResult.delayUntil = 60 * 60;
+			mStats.increment(SyncStats.PARSE_EXCEPTIONS);
+			mStats.delayAtLeast(60 * 60);
+		} catch (BandwidthExhaustedException e) {
+			// Not an error, the rest is synced when the budget is reset
+			Log.info("{}: {}", mSubreddit, e.getMessage());
+			mStats.delayAtLeast(mEmoteDownloader.getBandwidthBudget().getTimeUntilReset() / 1000);
 		} catch (IOException e) {
 			Log.error(mSubreddit + ": Error reading from network: " + e.getMessage(), e);
-			mSyncResult.stats.numIoExceptions++;
-			mSyncResult.delayUntil = 30 * 60;
+			mStats.increment(SyncStats.IO_EXCEPTIONS);
+			mStats.delayAtLeast(30 * 60);
 		} catch (RemoteException | OperationApplicationException e) {
 			Log.error(mSubreddit + ": Error updating database: " + e.getMessage(), e);
-			mSyncResult.databaseError = true;
+			mStats.setFlag(SyncStats.DATABASE_ERROR);
 		} catch (InterruptedException e) {
 			Log.info(mSubreddit + ": Sync interrupted");
-			mSyncResult.moreRecordsToGet = true;
+			mStats.setFlag(SyncStats.MORE_RECORDS_TO_GET);
 			Thread.currentThread().interrupt();
 		} finally {
-			mEmoteDownloader.updateSyncResult(mSyncResult);
+			// No download of this subreddit may outlive the job
+			mScope.close();
+			// Keep progress for the next sync if this one didn't finish
+			mJournal.close();
 		}
 	}
 
@@ -136,27 +155,10 @@ class SubredditEmoteDownloader implements Runnable {
 			RemoteException, OperationApplicationException, URISyntaxException,
 			InterruptedException {
 		Log.debug("{}: Getting emote list", mSubreddit);
-		List<EmoteImage> emotes = downloadEmoteList();
+		HashMap<String, EmoteImage> emotesHash = new HashMap<>();
+		List<EmoteImage> emotes = downloadEmoteList(emotesHash);
 
 		if (emotes != null) {
-			checkInterrupted();
-
-			HashMap<String, EmoteImage> emotesHash = new HashMap<>();
-			int i = 0;
-			while (i < emotes.size()) {
-				EmoteImage emote = emotes.get(i);
-				if (!emotesHash.containsKey(emote.getHash())) {
-					emotesHash.put(emote.getHash(), emote);
-				} else {
-					EmoteImage collision = emotesHash.get(emote.getHash());
-					Log.error("{}: Hash collision! " + emote.getImage() + " ("
-							+ emote.getHash() + ") <-> "
-							+ collision.getImage() + " ("
-							+ collision.getHash() + ")", mSubreddit);
-				}
-				i++;
-			}
-
 			checkInterrupted();
 			Cursor c = mContentResolver.query(
 					EmotesContract.Emote.CONTENT_URI_DISTINCT, new String[] {
@@ -182,11 +184,7 @@ class SubredditEmoteDownloader implements Runnable {
 														+ "=?",
 												new String[] { hash }).build());
 
-								mEmoteDownloader.checkStorageAvailable();
-								File file = new File(c.getString(POS_IMAGE));
-								if (file.exists()) {
-									file.delete();
-								}
+								mFiles.delete(new File(c.getString(POS_IMAGE)));
 							}
 						} while (c.moveToNext());
 					}
@@ -196,97 +194,126 @@ class SubredditEmoteDownloader implements Runnable {
 				} finally {
 					Log.debug("{}: Removing emotes from DB", mSubreddit);
 					applyBatch(batch);
-					mSyncResult.stats.numDeletes += batch.size();
+					mStats.add(SyncStats.DELETES, batch.size());
 					if (batch.size() > 0) {
 						Log.info("{}: Removed {} emotes from DB", mSubreddit, batch.size());
 					}
 				}
+
+				// Remove the images once the emotes are gone from the DB
+				mEmoteDownloader.checkStorageAvailable();
+				int deleted = mFiles.deleteQueued();
+				if (deleted > 0) {
+					Log.debug("{}: Deleted {} images", mSubreddit, deleted);
+				}
 			}
 		}
 		return emotes;
 	}
 
-	private List<EmoteImage> downloadEmoteList() throws URISyntaxException,
+	private List<EmoteImage> downloadEmoteList(HashMap<String, EmoteImage> emotesHash) throws URISyntaxException,
 			IOException, InterruptedException {
 		checkInterrupted();
 		Log.debug("{}: Downloading {}", mSubreddit, EMOTES);
 
 		mEmoteDownloader.checkCanDownload();
+		mEmoteDownloader.getBandwidthBudget().checkAvailable(BandwidthBudget.PRIORITY_LIST);
+
+		long journalModified = mJournal.getListLastModified();
+		if (journalModified > 0 && journalModified <= mLastModified.getTime()) {
+			// Left over from a sync that already finished
+			mJournal.clear();
+			journalModified = 0;
+		}
 
-		HttpURLConnection con = (HttpURLConnection) new URL(Endpoints.SYNC + mSubreddit + EMOTES).openConnection();
+		DownloadLimiter.Permit permit = mEmoteDownloader.getDownloadLimiter().acquire();
+		HttpURLConnection con = null;
 		try {
-			con.setIfModifiedSince(mLastModified.getTime());
+			con = (HttpURLConnection) new URL(Endpoints.SYNC + mSubreddit + EMOTES).openConnection();
+			con.setIfModifiedSince(Math.max(mLastModified.getTime(), journalModified));
 			con.connect();
-			switch (con.getResponseCode()) {
+			int responseCode = con.getResponseCode();
+			if (responseCode != HttpURLConnection.HTTP_OK) {
+				permit.release(responseCode, 0);
+			}
+			switch (responseCode) {
 				case HttpURLConnection.HTTP_OK:
 					Log.debug("{}: {} loaded", mSubreddit, EMOTES);
-					// Download ok
-					mLastModified = new Date(con.getLastModified());
 
 					checkInterrupted();
 
-					File tmpFile = File.createTempFile(mSubreddit, null,
-							mContext.getCacheDir());
+					File tmpFile = mJournal.createListTempFile();
 					try {
-						InputStream is = con.getInputStream();
+						InputStream is = mEmoteDownloader.getBandwidthBudget().wrap(con.getInputStream(),
+								BandwidthBudget.PRIORITY_LIST);
 						try {
 							mEmoteDownloader.checkStorageAvailable();
 							StreamUtils.saveStreamToFile(is, tmpFile);
 						} finally {
 							StreamUtils.closeStream(is);
 						}
+						permit.release(responseCode, tmpFile.length());
 
-						FileInputStream fis = null;
-						BufferedInputStream bis = null;
-						GZIPInputStream zis = null;
-						Reader isr = null;
-						JsonReader jsonReader = null;
-						checkInterrupted();
-
-						try {
-							fis = new FileInputStream(tmpFile);
-							bis = new BufferedInputStream(fis);
-							zis = new GZIPInputStream(bis);
-							isr = new InputStreamReader(zis, "UTF-8");
-							jsonReader = new JsonReader(isr);
-
-							jsonReader.beginArray();
-							Gson gson = new Gson();
-							ArrayList<EmoteImage> emotes = new ArrayList<>();
-							while (jsonReader.hasNext()) {
-								EmoteImage emote = gson.fromJson(jsonReader,
-										EmoteImage.class);
-								emotes.add(emote);
-							}
-							jsonReader.endArray();
-
-							Log.info("{}: Loaded {} , size: {}", mSubreddit, EMOTES, emotes.size());
-							return emotes;
-						} finally {
-							StreamUtils.closeStream(jsonReader);
-							StreamUtils.closeStream(isr);
-							StreamUtils.closeStream(zis);
-							StreamUtils.closeStream(bis);
-							StreamUtils.closeStream(fis);
-						}
+						// Download ok
+						mLastModified = new Date(con.getLastModified());
+						mJournal.commitList(tmpFile, mLastModified.getTime());
 					} finally {
 						tmpFile.delete();
 					}
+					break;
 				case HttpURLConnection.HTTP_NOT_MODIFIED:
+					if (journalModified > 0) {
+						Log.info("{}: Resuming interrupted sync", mSubreddit);
+						mLastModified = new Date(journalModified);
+						break;
+					}
 					Log.debug("{}: {} already up to date (HTTP 304)", mSubreddit, EMOTES);
-					break;
+					return null;
 				case HttpURLConnection.HTTP_FORBIDDEN:
 				case HttpURLConnection.HTTP_NOT_FOUND:
 					Log.info("{}: {} missing on server, removing emotes", mSubreddit, EMOTES);
 					mEmoteDownloader.deleteSubreddit(mSubreddit, mContentResolver);
-					break;
+					return null;
 				default:
 					throw new IOException("Unexpected HTTP response: " + con.getResponseMessage());
 			}
+		} catch (BandwidthExhaustedException e) {
+			// Our own limit, not a network failure
+			permit.abandon();
+			throw e;
+		} finally {
+			permit.release(-1, 0);
+			if (con != null) {
+				con.disconnect();
+			}
+		}
+
+		FileInputStream fis = null;
+		BufferedInputStream bis = null;
+		GZIPInputStream zis = null;
+		Reader isr = null;
+		JsonReader jsonReader = null;
+		checkInterrupted();
+
+		try {
+			fis = new FileInputStream(mJournal.getListFile());
+			bis = new BufferedInputStream(fis);
+			zis = new GZIPInputStream(bis);
+			isr = new InputStreamReader(zis, "UTF-8");
+			jsonReader = new JsonReader(isr);
+
+			EmoteListDecoder decoder = new EmoteListDecoder();
+			ArrayList<EmoteImage> emotes = decoder.readEmotes(jsonReader, emotesHash);
+
+			Log.info("{}: Loaded {} , size: {}", mSubreddit, EMOTES, emotes.size());
+			return emotes;
 		} finally {
-			 con.disconnect();
+			StreamUtils.closeStream(jsonReader);
+			StreamUtils.closeStream(isr);
+			StreamUtils.closeStream(zis);
+			StreamUtils.closeStream(bis);
+			StreamUtils.closeStream(fis);
 		}
-		return null;
 	}
 
 	public void updateEmotes(List<EmoteImage> emotes) throws RemoteException,
@@ -349,7 +376,7 @@ class SubredditEmoteDownloader implements Runnable {
 			Log.debug("{}: Removing emote names from DB", mSubreddit);
 			checkInterrupted();
 			applyBatch(batch);
-			mSyncResult.stats.numDeletes += batch.size();
+			mStats.add(SyncStats.DELETES, batch.size());
 			if (batch.size() > 0) {
 				Log.info("{}: Removed {} emote names from DB", mSubreddit, batch.size());
 			}
@@ -383,7 +410,7 @@ class SubredditEmoteDownloader implements Runnable {
 		Log.debug("{}: Adding emote names to DB", mSubreddit);
 		checkInterrupted();
 		applyBatch(batch);
-		mSyncResult.stats.numInserts += batch.size();
+		mStats.add(SyncStats.INSERTS, batch.size());
 		if (batch.size() > 0) {
 			Log.info("{}: Added {} emote names to DB", mSubreddit, batch.size());
 		}
@@ -400,21 +427,60 @@ class SubredditEmoteDownloader implements Runnable {
 			nomedia.createNewFile();
 		}
 
-		int i = 0;
-		while (i < emotes.size()) {
-			EmoteImage emote = emotes.get(i);
-			try {
-				if (!downloadEmote(emote)) {
-					Log.warn("{}: Failed to download {}", mSubreddit, emote.getImage());
-					emotes.remove(i);
-					continue;
+		// Images are downloaded concurrently, the download limiter decides how
+		// many are in flight. Emotes can share an image, it is downloaded once.
+		final HashMap<String, boolean[]> results = new HashMap<>();
+		for (final EmoteImage emote : emotes) {
+			if (results.containsKey(emote.getImage())) {
+				continue;
+			}
+			final boolean[] result = new boolean[1];
+			results.put(emote.getImage(), result);
+			mScope.fork(new TaskScope.Task() {
+				@Override
+				public void run() throws Exception {
+					try {
+						result[0] = downloadEmote(emote);
+						if (!result[0]) {
+							Log.warn("{}: Failed to download {}", mSubreddit, emote.getImage());
+						}
+					} catch (DownloadException e) {
+						Log.error(mSubreddit + ": Failed to download " + emote.getImage() + ": " + e.getMessage(), e);
+
+						mHasError = true;
+						mStats.increment(SyncStats.IO_EXCEPTIONS);
+					}
 				}
-			} catch (DownloadException e) {
-				Log.error(mSubreddit + ": Failed to download " + emote.getImage() + ": " + e.getMessage(), e);
+			});
+		}
 
-				emotes.remove(i);
-				mSyncResult.stats.numIoExceptions++;
+		try {
+			mScope.join();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof URISyntaxException) {
+				throw (URISyntaxException) cause;
+			} else if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+		if (mScope.isCancelled()) {
+			// The tasks that didn't run are not failed downloads
+			throw new InterruptedException();
+		}
 
+		// Written by the tasks, visible after join
+		int i = 0;
+		while (i < emotes.size()) {
+			if (!results.get(emotes.get(i).getImage())[0]) {
+				emotes.remove(i);
 				continue;
 			}
 			i++;
@@ -425,53 +491,74 @@ class SubredditEmoteDownloader implements Runnable {
 			URISyntaxException, InterruptedException {
 		checkInterrupted();
 
-		mEmoteDownloader.checkStorageAvailable();
 		File file = new File(mBaseDir, emote.getImage());
+		if (mJournal.isImageDone(emote.getImage()) && mFiles.exists(file)) {
+			// Already checked by an interrupted sync, the file may have been
+			// deleted since
+			return true;
+		}
 
-		if (!file.exists()) {
+		if (!mFiles.exists(file)) {
 			Log.debug("{}: Downloading emote {}", mSubreddit, emote.getImage());
 
-			file.getParentFile().mkdirs();
+			mEmoteDownloader.checkStorageAvailable();
+			mFiles.mkdirs(file);
 
 			mEmoteDownloader.checkCanDownload();
-			HttpURLConnection con = (HttpURLConnection) new URL(Endpoints.SYNC + emote.getImage()).openConnection();
+			mEmoteDownloader.getBandwidthBudget().checkAvailable(BandwidthBudget.PRIORITY_IMAGE);
+			DownloadLimiter.Permit permit = mEmoteDownloader.getDownloadLimiter().acquire();
+			HttpURLConnection con = null;
 			try {
+				con = (HttpURLConnection) new URL(Endpoints.SYNC + emote.getImage()).openConnection();
 				con.connect();
-				if (con.getResponseCode() != HttpURLConnection.HTTP_OK) {throw new DownloadException("Download failed for \""
+				if (con.getResponseCode() != HttpURLConnection.HTTP_OK) {
+					permit.release(con.getResponseCode(), 0);
+					throw new DownloadException("Download failed for \""
 						+ emote.getImage()
 						+ "\" code: "
 						+ String.valueOf(con.getResponseCode()));
 				}
 
-				InputStream is = con.getInputStream();
+				InputStream is = mEmoteDownloader.getBandwidthBudget().wrap(con.getInputStream(),
+						BandwidthBudget.PRIORITY_IMAGE);
 				try {
 					File tmpFile = new File(file.getAbsolutePath() + ".tmp");
-					if (tmpFile.exists())
+					if (mFiles.exists(tmpFile))
 						tmpFile.delete();
 					StreamUtils.saveStreamToFile(is, tmpFile);
-					tmpFile.renameTo(file);
+					permit.release(HttpURLConnection.HTTP_OK, tmpFile.length());
+					if (tmpFile.renameTo(file)) {
+						mFiles.added(file);
+					}
 					Log.debug("{}: Downloaded emote {}", mSubreddit, emote.getImage());
 				} finally {
 					StreamUtils.closeStream(is);
 				}
 
-				mEmoteDownloader.checkStorageAvailable();
+			} catch (BandwidthExhaustedException e) {
+				// Our own limit, not a network failure
+				permit.abandon();
+				throw e;
 			} finally {
-				con.disconnect();
+				permit.release(-1, 0);
+				if (con != null) {
+					con.disconnect();
+				}
 			}
 		}
 
-		return file.exists();
+		if (mFiles.exists(file)) {
+			mJournal.markImageDone(emote.getImage());
+			return true;
+		}
+		return false;
 	}
 
 	private void applyBatch(ArrayList<ContentProviderOperation> operations)
 			throws RemoteException, OperationApplicationException {
+		// EmotesProvider notifies observers
 		mContentResolver.applyBatch(EmotesContract.CONTENT_AUTHORITY,
 				operations);
-		mContentResolver.notifyChange(//
-				EmotesContract.Emote.CONTENT_URI, // URI where data was modified
-				null, // No local observer
-				false); // IMPORTANT: Do not sync to network
 	}
 
 	private void checkInterrupted() throws InterruptedException {
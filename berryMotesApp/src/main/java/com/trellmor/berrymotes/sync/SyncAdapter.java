@@ -22,6 +22,7 @@ import android.accounts.Account;
 import android.annotation.SuppressLint;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SyncResult;
 import android.os.Bundle;
@@ -58,10 +59,41 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             SyncResult syncResult) {
 	
 		Log.i(TAG, "Sync start");
-		
+
+		SyncScheduler scheduler = SyncScheduler.create(getContext());
+		SyncScheduler.Decision decision = scheduler.decide(
+				extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false));
+		Log.i(TAG, "Sync " + decision);
+		if (!decision.run) {
+			// Not an error, keep the framework from backing off. It won't
+			// retry either, so request the sync again ourselves.
+			syncResult.delayUntil = System.currentTimeMillis() / 1000 + decision.delay;
+			DeferredSyncReceiver.schedule(getContext(), decision.delay);
+			return;
+		}
+
 		EmoteDownloader downloader = new EmoteDownloader(getContext());
+		downloader.setTimeBudget(decision.budget);
 		downloader.start(syncResult);
-			
+
+		boolean complete = !downloader.isBudgetExhausted();
+		scheduler.recordOutcome(!syncResult.hasError(), complete);
+
+		long delay = downloader.getSyncStats().getDelay();
+		if (!complete) {
+			// Continue with the next chunk, the journal keeps the progress.
+			// Not through moreRecordsToGet, the framework would run it right
+			// away instead of in a window the scheduler picks.
+			delay = Math.max(delay, SyncScheduler.DEFER_CHUNK);
+		}
+		if (delay > 0 && !syncResult.hasError()) {
+			// A skipped part like a used up data budget or the next chunk,
+			// the framework only retries failed syncs
+			syncResult.delayUntil = Math.max(syncResult.delayUntil,
+					System.currentTimeMillis() / 1000 + delay);
+			DeferredSyncReceiver.schedule(getContext(), delay);
+		}
+
 		Log.i(TAG, "Sync finished");
 	}
 }
@@ -0,0 +1,236 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import android.content.Context;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+
+/**
+ * Persistent progress of an interrupted subreddit sync.
+ *
+ * Keeps the downloaded emote list together with its last modified date and
+ * a log of images that are already on disk, so a resumed sync can skip the
+ * list download and the per image checks. The database changes are derived
+ * from the list and the emotes table and are idempotent, so they are simply
+ * computed again on resume.
+ *
+ * The journal is removed once the subreddit was synced completely.
+ */
+class SyncJournal {
+	private final Logger Log = LoggerFactory.getLogger(SyncJournal.class);
+
+	private static final String DIR_JOURNAL = "sync-journal";
+	private static final String FILE_LIST = "emotes.json.gz";
+	private static final String FILE_STATE = "state";
+	private static final String FILE_IMAGES = "images";
+	// Flush the image log after this many entries
+	private static final int FLUSH_INTERVAL = 16;
+
+	private final File mDir;
+	private HashSet<String> mDoneImages = null;
+	private Writer mImageLog = null;
+	private int mUnflushed = 0;
+
+	public SyncJournal(Context context, String subreddit) {
+		mDir = new File(new File(context.getFilesDir(), DIR_JOURNAL), subreddit);
+	}
+
+	/**
+	 * @return true if a subreddit sync was interrupted and can be resumed
+	 */
+	public static boolean exists(Context context) {
+		File[] dirs = new File(context.getFilesDir(), DIR_JOURNAL).listFiles();
+		if (dirs != null) {
+			for (File dir : dirs) {
+				if (new File(dir, FILE_STATE).exists()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return Last modified date of the journaled emote list, 0 if there is none
+	 */
+	public long getListLastModified() {
+		File state = new File(mDir, FILE_STATE);
+		if (!state.exists() || !getListFile().exists()) {
+			return 0;
+		}
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(state));
+			return in.readLong();
+		} catch (IOException e) {
+			Log.warn("Invalid sync journal " + mDir.getName(), e);
+			return 0;
+		} finally {
+			StreamUtils.closeStream(in);
+		}
+	}
+
+	public File getListFile() {
+		return new File(mDir, FILE_LIST);
+	}
+
+	/**
+	 * Temporary file in the journal directory to download a new list to
+	 */
+	public File createListTempFile() throws IOException {
+		mDir.mkdirs();
+		return File.createTempFile(FILE_LIST, null, mDir);
+	}
+
+	/**
+	 * Start a new journal for a freshly downloaded emote list
+	 *
+	 * @param tmpFile File created by {@link #createListTempFile()}
+	 * @param lastModified Last modified date of the list
+	 */
+	public void commitList(File tmpFile, long lastModified) throws IOException {
+		close();
+		new File(mDir, FILE_STATE).delete();
+		new File(mDir, FILE_IMAGES).delete();
+		mDoneImages = new HashSet<>();
+
+		File list = getListFile();
+		if (!tmpFile.renameTo(list)) {
+			throw new IOException("Failed to write " + list);
+		}
+
+		// The state file marks the journal as valid, write it last
+		File stateTmp = File.createTempFile(FILE_STATE, null, mDir);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(stateTmp));
+		try {
+			out.writeLong(lastModified);
+		} finally {
+			out.close();
+		}
+		if (!stateTmp.renameTo(new File(mDir, FILE_STATE))) {
+			stateTmp.delete();
+			throw new IOException("Failed to write sync journal state");
+		}
+	}
+
+	public synchronized boolean isImageDone(String image) {
+		if (mDoneImages == null) {
+			mDoneImages = readImages();
+		}
+		return mDoneImages.contains(image);
+	}
+
+	/**
+	 * Remember that an image is on disk
+	 */
+	public synchronized void markImageDone(String image) {
+		if (mDoneImages == null) {
+			mDoneImages = readImages();
+		}
+		if (!mDoneImages.add(image)) {
+			return;
+		}
+
+		try {
+			if (mImageLog == null) {
+				mDir.mkdirs();
+				mImageLog = new BufferedWriter(new OutputStreamWriter(
+						new FileOutputStream(new File(mDir, FILE_IMAGES), true), "UTF-8"));
+			}
+			mImageLog.write(image);
+			mImageLog.write('\n');
+
+			if (++mUnflushed >= FLUSH_INTERVAL) {
+				mImageLog.flush();
+				mUnflushed = 0;
+			}
+		} catch (IOException e) {
+			// Not fatal, a resumed sync checks the image again
+			Log.warn("Error writing sync journal " + mDir.getName(), e);
+		}
+	}
+
+	private HashSet<String> readImages() {
+		HashSet<String> images = new HashSet<>();
+		File file = new File(mDir, FILE_IMAGES);
+		if (!file.exists()) {
+			return images;
+		}
+
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// A crash can leave a partial last line, it won't match any image
+				if (line.length() > 0) {
+					images.add(line);
+				}
+			}
+		} catch (IOException e) {
+			Log.warn("Error reading sync journal " + mDir.getName(), e);
+		} finally {
+			StreamUtils.closeStream(reader);
+		}
+		return images;
+	}
+
+	/**
+	 * Flush pending entries, the journal stays on disk
+	 */
+	public synchronized void close() {
+		if (mImageLog != null) {
+			StreamUtils.closeStream(mImageLog);
+			mImageLog = null;
+			mUnflushed = 0;
+		}
+	}
+
+	/**
+	 * Remove the journal after the subreddit was synced completely
+	 */
+	public synchronized void clear() {
+		close();
+		mDoneImages = null;
+
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mDir.delete();
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders subreddit sync jobs so the subreddits people actually use are
+ * fresh first.
+ *
+ * The score favours explicitly enabled subreddits, frequently picked or
+ * shared subreddits and subreddits that were never synced, and prefers small
+ * subreddits over large ones at equal usage.
+ */
+class SyncPlanner {
+	private static final long ONE_DAY = 24L * 60L * 60L * 1000L;
+	private static final long ONE_MB = 1024L * 1024L;
+
+	private final long mNow;
+	private final ArrayList<Job> mJobs = new ArrayList<>();
+
+	public SyncPlanner(long now) {
+		mNow = now;
+	}
+
+	/**
+	 * @param name Subreddit name
+	 * @param enabled Subreddit was enabled by the user
+	 * @param usage Number of picks and shares
+	 * @param size Size of the subreddit in bytes
+	 * @param lastSync Last modified time of the synced emote list, 0 if never synced
+	 */
+	public void add(String name, boolean enabled, long usage, long size, long lastSync) {
+		double score = 1 + Math.log(1 + usage);
+
+		if (enabled) {
+			score *= 2;
+		}
+
+		if (lastSync <= 0) {
+			score *= 2;
+		} else {
+			// Up to twice the weight for a list older than a month
+			double age = Math.min(Math.max(mNow - lastSync, 0) / (double) ONE_DAY, 30);
+			score *= 1 + age / 30;
+		}
+
+		score /= 1 + Math.log(1 + size / (double) ONE_MB);
+
+		mJobs.add(new Job(name, score));
+	}
+
+	/**
+	 * @return Subreddit names, most important first
+	 */
+	public List<String> plan() {
+		Collections.sort(mJobs, new Comparator<Job>() {
+			@Override
+			public int compare(Job lhs, Job rhs) {
+				return Double.compare(rhs.mScore, lhs.mScore);
+			}
+		});
+
+		ArrayList<String> names = new ArrayList<>(mJobs.size());
+		for (Job job : mJobs) {
+			names.add(job.mName);
+		}
+		return names;
+	}
+
+	private static class Job {
+		private final String mName;
+		private final double mScore;
+
+		public Job(String name, double score) {
+			mName = name;
+			mScore = score;
+		}
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Environment;
+import android.os.PowerManager;
+import android.os.StatFs;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+import com.trellmor.berrymotes.util.Settings;
+
+import java.io.File;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Decides whether a sync should run now, be deferred or run as a short chunk.
+ *
+ * Constraints: the network must be unmetered if the user chose Wi-Fi only and
+ * the storage must not be low. On a metered network the daily mobile data
+ * budget must not be used up. Syncs that are not overdue wait for the device
+ * to be charging or idle and for an hour of the day in which syncs usually
+ * succeed. Outcomes are recorded per hour of the day to learn those windows.
+ * Syncs on battery get a time budget, the rest of the work resumes later from
+ * the sync journal.
+ *
+ * Time and device state are read through {@link Clock} and {@link Device} so
+ * the decisions can be checked with fakes.
+ */
+class SyncScheduler {
+	public interface Clock {
+		long currentTimeMillis();
+
+		/**
+		 * @return Milliseconds since boot, for intervals
+		 */
+		long elapsedRealtime();
+	}
+
+	public interface Device {
+		boolean isConnected();
+
+		boolean isUnmetered();
+
+		boolean isCharging();
+
+		/**
+		 * @return true if the user is not using the device
+		 */
+		boolean isIdle();
+
+		boolean isStorageLow();
+	}
+
+	public static final class Decision {
+		/**
+		 * Sync should run now
+		 */
+		public final boolean run;
+		/**
+		 * Seconds until the sync is requested again if not run
+		 */
+		public final long delay;
+		/**
+		 * Time budget in milliseconds if run, 0 for no limit
+		 */
+		public final long budget;
+		public final String reason;
+
+		private Decision(boolean run, long delay, long budget, String reason) {
+			this.run = run;
+			this.delay = delay;
+			this.budget = budget;
+			this.reason = reason;
+		}
+
+		@Override
+		public String toString() {
+			return run ? "run (" + reason + ", budget " + budget + " ms)"
+					: "defer " + delay + " s (" + reason + ")";
+		}
+	}
+
+	static final Clock SYSTEM_CLOCK = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public long elapsedRealtime() {
+			return SystemClock.elapsedRealtime();
+		}
+	};
+
+	private static final long ONE_HOUR = 60L * 60L * 1000L;
+
+	// Seconds
+	static final long DEFER_CONSTRAINT = 30 * 60;
+	static final long DEFER_IDLE = 60 * 60;
+	// Before the next chunk is requested, it is decided on again
+	static final long DEFER_CHUNK = 15 * 60;
+	// Work on battery is split into chunks of this length
+	static final long CHUNK_BUDGET = 10L * 60L * 1000L;
+	// Hours with a lower success score are avoided if a better one is near
+	static final float WINDOW_MIN = 0.3f;
+	static final int WINDOW_LOOKAHEAD = 6;
+
+	private static final float SCORE_UNKNOWN = 0.5f;
+	private static final float SCORE_WEIGHT = 0.3f;
+	private static final String PREF_WINDOW = "sync_window_";
+
+	private final Clock mClock;
+	private final Device mDevice;
+	private final SharedPreferences mPreferences;
+	private final TimeZone mTimeZone;
+	private final BandwidthBudget mBandwidthBudget;
+
+	public static SyncScheduler create(Context context) {
+		return new SyncScheduler(SYSTEM_CLOCK, new AndroidDevice(context),
+				PreferenceManager.getDefaultSharedPreferences(context), TimeZone.getDefault(),
+				BandwidthBudget.getInstance(context));
+	}
+
+	SyncScheduler(Clock clock, Device device, SharedPreferences preferences, TimeZone timeZone,
+				  BandwidthBudget bandwidthBudget) {
+		mClock = clock;
+		mDevice = device;
+		mPreferences = preferences;
+		mTimeZone = timeZone;
+		mBandwidthBudget = bandwidthBudget;
+	}
+
+	/**
+	 * @param manual Sync was requested by the user, only hard constraints
+	 *               apply
+	 */
+	public Decision decide(boolean manual) {
+		if (!mDevice.isConnected()) {
+			return new Decision(false, DEFER_CONSTRAINT, 0, "no network");
+		}
+		if (isWiFiOnly() && !mDevice.isUnmetered()) {
+			return new Decision(false, DEFER_CONSTRAINT, 0, "metered network");
+		}
+		if (!mDevice.isUnmetered() && mBandwidthBudget.getRemaining() <= 0) {
+			return new Decision(false, Math.max(mBandwidthBudget.getTimeUntilReset() / 1000, 1), 0,
+					"mobile data budget used");
+		}
+		if (mDevice.isStorageLow()) {
+			return new Decision(false, DEFER_CONSTRAINT, 0, "storage low");
+		}
+
+		boolean charging = mDevice.isCharging();
+		long budget = charging ? 0 : CHUNK_BUDGET;
+		if (manual) {
+			return new Decision(true, 0, budget, "manual");
+		}
+
+		long now = mClock.currentTimeMillis();
+		if (isOverdue(now)) {
+			return new Decision(true, 0, budget, "overdue");
+		}
+
+		if (!charging && !mDevice.isIdle()) {
+			return new Decision(false, DEFER_IDLE, 0, "device in use");
+		}
+
+		int hour = getHour(now);
+		if (getScore(hour) < WINDOW_MIN) {
+			for (int i = 1; i <= WINDOW_LOOKAHEAD; i++) {
+				if (getScore((hour + i) % 24) >= WINDOW_MIN) {
+					return new Decision(false, getSecondsUntilHour(now, i), 0, "poor window");
+				}
+			}
+		}
+
+		return new Decision(true, 0, budget, "window");
+	}
+
+	/**
+	 * Record the result of a sync for the current hour of the day
+	 *
+	 * @param success Sync finished without errors
+	 * @param complete All work was done, not only a chunk
+	 */
+	public void recordOutcome(boolean success, boolean complete) {
+		long now = mClock.currentTimeMillis();
+		int hour = getHour(now);
+		float score = getScore(hour) * (1 - SCORE_WEIGHT) + (success ? SCORE_WEIGHT : 0);
+
+		SharedPreferences.Editor editor = mPreferences.edit();
+		editor.putFloat(PREF_WINDOW + hour, score);
+		if (success && complete) {
+			editor.putLong(Settings.KEY_SYNC_LAST_COMPLETE, now);
+		}
+		editor.commit();
+	}
+
+	private boolean isWiFiOnly() {
+		return Settings.VALUE_SYNC_CONNECTION_WIFI.equals(mPreferences.getString(Settings.KEY_SYNC_CONNECTION,
+				Settings.VALUE_SYNC_CONNECTION_WIFI));
+	}
+
+	private boolean isOverdue(long now) {
+		int hours = Integer.parseInt(mPreferences.getString(Settings.KEY_SYNC_FREQUENCY, "6"));
+		if (hours <= 0) {
+			// No periodic sync, nothing to wait for
+			return true;
+		}
+		// Deferred syncs must not starve, give up on waiting after two periods
+		return now - mPreferences.getLong(Settings.KEY_SYNC_LAST_COMPLETE, 0) >= 2 * hours * ONE_HOUR;
+	}
+
+	private float getScore(int hour) {
+		return mPreferences.getFloat(PREF_WINDOW + hour, SCORE_UNKNOWN);
+	}
+
+	private int getHour(long time) {
+		Calendar calendar = Calendar.getInstance(mTimeZone);
+		calendar.setTimeInMillis(time);
+		return calendar.get(Calendar.HOUR_OF_DAY);
+	}
+
+	private long getSecondsUntilHour(long now, int hours) {
+		Calendar calendar = Calendar.getInstance(mTimeZone);
+		calendar.setTimeInMillis(now);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.add(Calendar.HOUR_OF_DAY, hours);
+		return Math.max((calendar.getTimeInMillis() - now) / 1000, 1);
+	}
+
+	static class AndroidDevice implements Device {
+		// Bytes
+		private static final long STORAGE_LOW = 50L * 1024L * 1024L;
+
+		private final Context mContext;
+
+		public AndroidDevice(Context context) {
+			mContext = context;
+		}
+
+		@Override
+		public boolean isConnected() {
+			NetworkInfo networkInfo = getConnectivityManager().getActiveNetworkInfo();
+			return networkInfo != null && networkInfo.isConnected();
+		}
+
+		@Override
+		public boolean isUnmetered() {
+			return !ConnectivityManagerCompat.isActiveNetworkMetered(getConnectivityManager());
+		}
+
+		@Override
+		public boolean isCharging() {
+			Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+			return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public boolean isIdle() {
+			PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+				return !pm.isInteractive();
+			}
+			return !pm.isScreenOn();
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public boolean isStorageLow() {
+			if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+				return true;
+			}
+			File dir = mContext.getExternalFilesDir(null);
+			if (dir == null) {
+				return true;
+			}
+			StatFs stat = new StatFs(dir.getPath());
+			return (long) stat.getAvailableBlocks() * stat.getBlockSize() < STORAGE_LOW;
+		}
+
+		private ConnectivityManager getConnectivityManager() {
+			return (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import android.content.SyncResult;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sync statistics shared by the subreddit jobs.
+ *
+ * Counters are striped by thread so concurrent jobs add to different cells
+ * without locking, the cells are summed once when the sync ends and folded
+ * into the framework {@link SyncResult}. Like a LongAdder, which is not
+ * available on older Android versions.
+ */
+final class SyncStats {
+	static final int AUTH_EXCEPTIONS = 0;
+	static final int IO_EXCEPTIONS = 1;
+	static final int PARSE_EXCEPTIONS = 2;
+	static final int CONFLICT_DETECTED_EXCEPTIONS = 3;
+	static final int INSERTS = 4;
+	static final int UPDATES = 5;
+	static final int DELETES = 6;
+	static final int ENTRIES = 7;
+	static final int SKIPPED_ENTRIES = 8;
+	private static final int COUNTERS = 9;
+
+	static final int TOO_MANY_DELETIONS = 1;
+	static final int TOO_MANY_RETRIES = 1 << 1;
+	static final int FULL_SYNC_REQUESTED = 1 << 2;
+	static final int PARTIAL_SYNC_UNAVAILABLE = 1 << 3;
+	static final int MORE_RECORDS_TO_GET = 1 << 4;
+	static final int DATABASE_ERROR = 1 << 5;
+
+	// Two cache lines per stripe, jobs on different threads don't write to
+	// the same line
+	private static final int STRIDE = 16;
+	private static final int STRIPES = stripes();
+
+	private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * STRIDE);
+	private final AtomicInteger mFlags = new AtomicInteger();
+	// Seconds, relative to the end of the sync
+	private final AtomicLong mDelay = new AtomicLong();
+
+	private static int stripes() {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int stripes = 1;
+		while (stripes < cpus * 2) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+
+	public void increment(int counter) {
+		add(counter, 1);
+	}
+
+	public void add(int counter, long value) {
+		if (value != 0) {
+			mCells.getAndAdd(cell(counter), value);
+		}
+	}
+
+	/**
+	 * @return Current total of a counter, exact once all jobs are done
+	 */
+	public long sum(int counter) {
+		long sum = 0;
+		for (int i = counter; i < mCells.length(); i += STRIDE) {
+			sum += mCells.get(i);
+		}
+		return sum;
+	}
+
+	public void setFlag(int flag) {
+		int flags;
+		do {
+			flags = mFlags.get();
+			if ((flags & flag) == flag) {
+				return;
+			}
+		} while (!mFlags.compareAndSet(flags, flags | flag));
+	}
+
+	public boolean hasFlag(int flag) {
+		return (mFlags.get() & flag) == flag;
+	}
+
+	/**
+	 * Raise the delay until the next sync, a lower delay is ignored
+	 *
+	 * @param delay Seconds
+	 */
+	public void delayAtLeast(long delay) {
+		long current;
+		do {
+			current = mDelay.get();
+			if (current >= delay) {
+				return;
+			}
+		} while (!mDelay.compareAndSet(current, delay));
+	}
+
+	/**
+	 * @return Seconds to wait before the next sync, 0 if there is no delay
+	 */
+	public long getDelay() {
+		return mDelay.get();
+	}
+
+	/**
+	 * Add the totals to a sync result, call after all jobs finished
+	 */
+	public void foldInto(SyncResult syncResult) {
+		syncResult.stats.numAuthExceptions += sum(AUTH_EXCEPTIONS);
+		syncResult.stats.numIoExceptions += sum(IO_EXCEPTIONS);
+		syncResult.stats.numParseExceptions += sum(PARSE_EXCEPTIONS);
+		syncResult.stats.numConflictDetectedExceptions += sum(CONFLICT_DETECTED_EXCEPTIONS);
+		syncResult.stats.numInserts += sum(INSERTS);
+		syncResult.stats.numUpdates += sum(UPDATES);
+		syncResult.stats.numDeletes += sum(DELETES);
+		syncResult.stats.numEntries += sum(ENTRIES);
+		syncResult.stats.numSkippedEntries += sum(SKIPPED_ENTRIES);
+
+		if (hasFlag(TOO_MANY_DELETIONS))
+			syncResult.tooManyDeletions = true;
+		if (hasFlag(TOO_MANY_RETRIES))
+			syncResult.tooManyRetries = true;
+		if (hasFlag(FULL_SYNC_REQUESTED))
+			syncResult.fullSyncRequested = true;
+		if (hasFlag(PARTIAL_SYNC_UNAVAILABLE))
+			syncResult.partialSyncUnavailable = true;
+		if (hasFlag(MORE_RECORDS_TO_GET))
+			syncResult.moreRecordsToGet = true;
+		if (hasFlag(DATABASE_ERROR))
+			syncResult.databaseError = true;
+
+		// delayUntil is absolute, in seconds since the epoch
+		long delay = mDelay.get();
+		if (delay > 0) {
+			long delayUntil = System.currentTimeMillis() / 1000 + delay;
+			if (syncResult.delayUntil < delayUntil)
+				syncResult.delayUntil = delayUntil;
+		}
+	}
+
+	private static int cell(int counter) {
+		if (counter < 0 || counter >= COUNTERS) {
+			throw new IllegalArgumentException("Unknown counter " + counter);
+		}
+		// Pool threads have consecutive ids
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		return stripe * STRIDE + counter;
+	}
+}
@@ -105,6 +105,23 @@ public class SyncUtils {
 				b); // Extras
 	}
 
+	/**
+	 * Request a sync that follows the sync settings, unlike
+	 * {@link #triggerRefresh()}
+	 */
+	public static void requestSync() {
+		ContentResolver.requestSync(GenericAccountService.getAccount(),
+				CONTENT_AUTHORITY, new Bundle());
+	}
+
+	/**
+	 * @return true if an interrupted sync has downloaded images that are not
+	 * in the database yet
+	 */
+	public static boolean hasInterruptedSync(Context context) {
+		return SyncJournal.exists(context);
+	}
+
 	public static void setSyncFrequency(int hours) {
 		// Only set up new sync if interval is positive, otherwise sync is
 		// disabled
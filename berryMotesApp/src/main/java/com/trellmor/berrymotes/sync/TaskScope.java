@@ -0,0 +1,350 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Structured concurrency for the sync.
+ *
+ * Tasks forked in a scope run on a small pool of carrier threads shared by
+ * the scope and its child scopes, and can't outlive the scope: {@link #join()}
+ * waits for all of them and {@link #close()} cancels what is left. A task is
+ * only a queued object until a carrier picks it up, so a scope can hold
+ * hundreds of tasks on a few threads.
+ *
+ * Cancelling a scope drops its queued tasks, interrupts the running ones and
+ * cancels its child scopes. If a task fails the scope starts no more tasks
+ * and join() reports the first failure.
+ *
+ * Tasks of deeper scopes run first, so work already started finishes before
+ * new work is taken up. A carrier that joins a child scope runs the queued
+ * tasks of that scope itself instead of only waiting, so nested scopes can't
+ * starve the pool.
+ */
+final class TaskScope {
+	public interface Task {
+		void run() throws Exception;
+	}
+
+	private static final Logger Log = LoggerFactory.getLogger(TaskScope.class);
+
+	private final ThreadPoolExecutor mCarriers;
+	private final TaskScope mParent;
+	private final int mDepth;
+	private final AtomicLong mSequence;
+
+	// Guarded by this
+	private final ArrayList<ScopedTask> mTasks = new ArrayList<>();
+	private final ArrayList<TaskScope> mChildren = new ArrayList<>();
+	// Task bodies on a thread right now, a cancelled task is done before its
+	// body has stopped
+	private int mRunning = 0;
+	private boolean mCancelled = false;
+	private Throwable mFailure = null;
+
+	/**
+	 * Open a root scope with its own carrier threads
+	 */
+	public static TaskScope open(String name, int carriers) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(carriers, carriers, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new CarrierFactory(name));
+		return new TaskScope(executor, null);
+	}
+
+	private TaskScope(ThreadPoolExecutor carriers, TaskScope parent) {
+		mCarriers = carriers;
+		mParent = parent;
+		mDepth = (parent != null) ? parent.mDepth + 1 : 0;
+		mSequence = (parent != null) ? parent.mSequence : new AtomicLong();
+	}
+
+	/**
+	 * Open a child scope on the same carriers, it is cancelled together with
+	 * this scope
+	 */
+	public TaskScope openChild() {
+		TaskScope child = new TaskScope(mCarriers, this);
+		synchronized (this) {
+			if (mCancelled) {
+				child.mCancelled = true;
+			} else {
+				mChildren.add(child);
+			}
+		}
+		return child;
+	}
+
+	/**
+	 * Queue a task
+	 *
+	 * @return false if the scope was cancelled or failed and the task won't
+	 * run
+	 */
+	public boolean fork(Task task) {
+		ScopedTask scoped = new ScopedTask(task);
+		synchronized (this) {
+			if (mCancelled || mFailure != null) {
+				return false;
+			}
+			mTasks.add(scoped);
+			notifyAll();
+		}
+		try {
+			mCarriers.execute(scoped);
+		} catch (RejectedExecutionException e) {
+			// Carriers are shut down
+			scoped.cancel(false);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Wait for all tasks of this scope. Queued tasks are run by the calling
+	 * thread. If the calling thread is interrupted the scope is cancelled.
+	 *
+	 * @throws ExecutionException if a task failed, the cause is the first
+	 * exception thrown by a task
+	 */
+	public void join() throws InterruptedException, ExecutionException {
+		try {
+			while (true) {
+				ScopedTask next = null;
+				synchronized (this) {
+					for (ScopedTask task : mTasks) {
+						if (!task.isStarted()) {
+							next = task;
+							break;
+						}
+					}
+					if (next == null) {
+						if (mTasks.isEmpty() && mRunning == 0) {
+							break;
+						}
+						// Woken when a task finishes or a new one is forked
+						wait();
+						continue;
+					}
+				}
+				// No-op if a carrier took it in the meantime
+				next.run();
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		} catch (InterruptedException e) {
+			cancel();
+			throw e;
+		}
+
+		synchronized (this) {
+			if (mFailure != null) {
+				throw new ExecutionException(mFailure);
+			}
+		}
+	}
+
+	/**
+	 * Cancel all tasks and child scopes
+	 */
+	public void cancel() {
+		ArrayList<ScopedTask> tasks;
+		ArrayList<TaskScope> children;
+		synchronized (this) {
+			if (mCancelled) {
+				return;
+			}
+			mCancelled = true;
+			tasks = new ArrayList<>(mTasks);
+			children = new ArrayList<>(mChildren);
+		}
+		for (TaskScope child : children) {
+			child.cancel();
+		}
+		for (ScopedTask task : tasks) {
+			task.cancel(true);
+		}
+	}
+
+	public synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * Cancel what is left and wait until no task of this scope runs anymore.
+	 * Shuts the carriers down if this is a root scope.
+	 */
+	public void close() {
+		cancel();
+
+		boolean interrupted = false;
+		synchronized (this) {
+			// Cancelled tasks that were running may still be unwinding
+			while (!mTasks.isEmpty() || mRunning > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+
+		if (mParent != null) {
+			synchronized (mParent) {
+				mParent.mChildren.remove(this);
+			}
+		} else {
+			mCarriers.shutdownNow();
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void onDone(ScopedTask task, Throwable failure) {
+		ArrayList<ScopedTask> queued = new ArrayList<>();
+		synchronized (this) {
+			mTasks.remove(task);
+			if (failure != null && mFailure == null) {
+				mFailure = failure;
+				// Start nothing new, running tasks finish on their own
+				for (ScopedTask t : mTasks) {
+					if (!t.isStarted()) {
+						queued.add(t);
+					}
+				}
+			}
+			notifyAll();
+		}
+		for (ScopedTask t : queued) {
+			t.cancel(false);
+		}
+	}
+
+	private class ScopedTask extends FutureTask<Void> implements Comparable<ScopedTask> {
+		private final long mOrder = mSequence.getAndIncrement();
+		private volatile boolean mStarted = false;
+
+		public ScopedTask(final Task task) {
+			super(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new TaskException(e);
+					}
+				}
+			}, null);
+		}
+
+		public boolean isStarted() {
+			return mStarted || isDone();
+		}
+
+		@Override
+		public void run() {
+			mStarted = true;
+			synchronized (TaskScope.this) {
+				mRunning++;
+			}
+			try {
+				super.run();
+			} finally {
+				synchronized (TaskScope.this) {
+					mRunning--;
+					TaskScope.this.notifyAll();
+				}
+			}
+		}
+
+		@Override
+		protected void done() {
+			Throwable failure = null;
+			if (!isCancelled()) {
+				try {
+					get();
+				} catch (ExecutionException e) {
+					failure = (e.getCause() instanceof TaskException) ? e.getCause().getCause() : e.getCause();
+					if (!(failure instanceof Exception)) {
+						Log.error("Task failed", failure);
+					}
+				} catch (InterruptedException | CancellationException e) {
+					// Can't happen once done
+				}
+			}
+			onDone(this, failure);
+		}
+
+		@Override
+		public int compareTo(ScopedTask another) {
+			int depth = getDepth(another);
+			if (depth != 0) {
+				// Deeper first
+				return -depth;
+			}
+			return (mOrder < another.mOrder) ? -1 : ((mOrder == another.mOrder) ? 0 : 1);
+		}
+
+		private int getDepth(ScopedTask another) {
+			return mDepth - another.getScope().mDepth;
+		}
+
+		private TaskScope getScope() {
+			return TaskScope.this;
+		}
+	}
+
+	private static class TaskException extends RuntimeException {
+		public TaskException(Exception cause) {
+			super(cause);
+		}
+	}
+
+	private static class CarrierFactory implements ThreadFactory {
+		private final String mName;
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		public CarrierFactory(String name) {
+			mName = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(r, mName + "-" + mCount.incrementAndGet());
+		}
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.ui;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.trellmor.berrymotes.loader.EmoteLoader;
+import com.trellmor.berrymotes.loader.ScalingEmoteLoader;
+import com.trellmor.berrymotes.provider.EmotesContract;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Decoded emote frames shared by all detail fragments.
+ *
+ * Frames are decoded in the background one after another and listeners are
+ * told about every new frame, so an animation can start as soon as frame 0 is
+ * ready. A prefetch only decodes frame 0, the other frames are decoded once
+ * the emote is acquired. Emotes stay cached while they are in use and are evicted least
+ * recently used first once they are released and the byte budget is exceeded.
+ *
+ * Animations too large for the budget only get frame 0 decoded and are marked
+ * as streamed, they are played by a {@link FrameSequenceDrawable}.
+ *
+ * All entries are dropped when the emotes change, frames still shown stay
+ * with their fragments but the next acquire decodes the emote again.
+ */
+class AnimationFrameCache {
+	private static AnimationFrameCache sInstance = null;
+
+	public interface Listener {
+		/**
+		 * Called on the main thread when frames were decoded or decoding
+		 * finished
+		 */
+		void onFramesDecoded(Frames frames);
+	}
+
+	// Animations larger than this fraction of the budget are streamed
+	private static final int STREAM_FRACTION = 4;
+
+	private final Context mContext;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final long mBudget;
+	// Access ordered, least recently used first
+	private final LinkedHashMap<String, Frames> mFrames = new LinkedHashMap<>(16, 0.75f, true);
+	private long mSize = 0;
+
+	public static synchronized AnimationFrameCache getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new AnimationFrameCache(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private AnimationFrameCache(Context context) {
+		mContext = context;
+		mBudget = Runtime.getRuntime().maxMemory() / 8;
+		mContext.getContentResolver().registerContentObserver(EmotesContract.Emote.CONTENT_URI, true,
+				new ContentObserver(mHandler) {
+					@Override
+					public void onChange(boolean selfChange) {
+						clear();
+					}
+				});
+	}
+
+	/**
+	 * Get the frames of an emote and start decoding them if necessary. Call
+	 * {@link #release(Frames, Listener)} once the frames are no longer shown.
+	 */
+	public synchronized Frames acquire(String name, Listener listener) {
+		Frames frames = get(name);
+		frames.mRefs++;
+		if (listener != null) {
+			frames.mListeners.add(listener);
+		}
+		decode(frames);
+		return frames;
+	}
+
+	/**
+	 * Start decoding frame 0 of an emote that is likely to be shown soon, the
+	 * frame is evicted like released frames
+	 */
+	public synchronized void prefetch(String name) {
+		decode(get(name));
+	}
+
+	public synchronized void release(Frames frames, Listener listener) {
+		frames.mListeners.remove(listener);
+		if (frames.mRefs > 0) {
+			frames.mRefs--;
+		}
+		trim();
+	}
+
+	private Frames get(String name) {
+		Frames frames = mFrames.get(name);
+		if (frames == null) {
+			frames = new Frames(name);
+			mFrames.put(name, frames);
+		}
+		return frames;
+	}
+
+	private void decode(Frames frames) {
+		if (frames.mDecoding || frames.mComplete) {
+			return;
+		}
+		if (frames.mRefs == 0 && !frames.mFrames.isEmpty()) {
+			// Prefetched, the rest waits until the emote is opened
+			return;
+		}
+		frames.mDecoding = true;
+		AsyncTask.THREAD_POOL_EXECUTOR.execute(new DecodeJob(frames));
+	}
+
+	private synchronized void clear() {
+		for (Frames frames : mFrames.values()) {
+			if (frames.mRefs == 0) {
+				frames.mEvicted = true;
+			}
+		}
+		mFrames.clear();
+		mSize = 0;
+	}
+
+	private void trim() {
+		Iterator<Frames> it = mFrames.values().iterator();
+		while (mSize > mBudget && it.hasNext()) {
+			Frames frames = it.next();
+			if (frames.mRefs == 0) {
+				it.remove();
+				frames.mEvicted = true;
+				mSize -= frames.mBytes;
+			}
+		}
+	}
+
+	private synchronized boolean addFrame(Frames frames, Drawable frame) {
+		if (frames.mEvicted) {
+			return false;
+		}
+
+		long bytes;
+		if (frame instanceof BitmapDrawable && ((BitmapDrawable) frame).getBitmap() != null) {
+			bytes = ((BitmapDrawable) frame).getBitmap().getByteCount();
+		} else {
+			bytes = 4L * frame.getIntrinsicWidth() * frame.getIntrinsicHeight();
+		}
+		if (frames.mFrames.isEmpty() && frames.mDelays.length > 1
+				&& bytes * frames.mDelays.length > mBudget / STREAM_FRACTION) {
+			frames.mStreamed = true;
+		}
+
+		frames.mFrames.add(frame.getConstantState());
+		frames.mBytes += bytes;
+		if (mFrames.get(frames.mName) == frames) {
+			mSize += bytes;
+		}
+		trim();
+		return true;
+	}
+
+	private void notifyListeners(final Frames frames) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				ArrayList<Listener> listeners;
+				synchronized (AnimationFrameCache.this) {
+					listeners = new ArrayList<>(frames.mListeners);
+				}
+				for (Listener listener : listeners) {
+					listener.onFramesDecoded(frames);
+				}
+			}
+		});
+	}
+
+	public class Frames {
+		private final String mName;
+		private final ArrayList<Drawable.ConstantState> mFrames = new ArrayList<>();
+		private final ArrayList<Listener> mListeners = new ArrayList<>();
+		private int[] mDelays = null;
+		private String[] mImages = null;
+		private boolean mComplete = false;
+		private boolean mDecoding = false;
+		private boolean mStreamed = false;
+		private boolean mEvicted = false;
+		private int mRefs = 0;
+		private long mBytes = 0;
+
+		private Frames(String name) {
+			mName = name;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		/**
+		 * @return Number of frames of the emote, -1 if not known yet
+		 */
+		public int getFrameCount() {
+			synchronized (AnimationFrameCache.this) {
+				return (mDelays != null) ? mDelays.length : -1;
+			}
+		}
+
+		public int getDecodedCount() {
+			synchronized (AnimationFrameCache.this) {
+				return mFrames.size();
+			}
+		}
+
+		public boolean isComplete() {
+			synchronized (AnimationFrameCache.this) {
+				return mComplete;
+			}
+		}
+
+		/**
+		 * @return New drawable for a decoded frame, the bitmap is shared
+		 */
+		public Drawable newFrame(int index, Resources res) {
+			Drawable.ConstantState state;
+			synchronized (AnimationFrameCache.this) {
+				state = mFrames.get(index);
+			}
+			return state.newDrawable(res);
+		}
+
+		public int getDelay(int index) {
+			synchronized (AnimationFrameCache.this) {
+				return mDelays[index];
+			}
+		}
+
+		/**
+		 * @return true if only frame 0 is decoded and the animation has to be
+		 * played from the image files
+		 */
+		public boolean isStreamed() {
+			synchronized (AnimationFrameCache.this) {
+				return mStreamed;
+			}
+		}
+
+		public String[] getImages() {
+			synchronized (AnimationFrameCache.this) {
+				return mImages;
+			}
+		}
+
+		public int[] getDelays() {
+			synchronized (AnimationFrameCache.this) {
+				return mDelays;
+			}
+		}
+	}
+
+	private class DecodeJob implements Runnable {
+		private final Frames mTarget;
+
+		public DecodeJob(Frames frames) {
+			mTarget = frames;
+		}
+
+		@Override
+		public void run() {
+			if (mTarget.getFrameCount() < 0) {
+				loadRows();
+			}
+			String[] images = mTarget.getImages();
+
+			EmoteLoader loader = new ScalingEmoteLoader(mContext);
+			for (int i = mTarget.getDecodedCount(); i < images.length; i++) {
+				synchronized (AnimationFrameCache.this) {
+					if (i > 0 && mTarget.mRefs == 0) {
+						// Only prefetched or released, continued by acquire()
+						mTarget.mDecoding = false;
+						return;
+					}
+				}
+
+				Drawable frame = loader.fromPath(images[i]);
+				if (frame == null || !addFrame(mTarget, frame)) {
+					// Broken image or nobody needs the frames anymore
+					break;
+				}
+				notifyListeners(mTarget);
+				if (mTarget.isStreamed()) {
+					break;
+				}
+			}
+
+			synchronized (AnimationFrameCache.this) {
+				mTarget.mComplete = true;
+				mTarget.mDecoding = false;
+				if (mTarget.mFrames.isEmpty()
+						|| (!mTarget.mStreamed && mTarget.mFrames.size() < images.length)) {
+					// Missing or broken emote, decode again next time
+					if (mFrames.get(mTarget.mName) == mTarget) {
+						mFrames.remove(mTarget.mName);
+						mTarget.mEvicted = true;
+						mSize -= mTarget.mBytes;
+					}
+				}
+			}
+			notifyListeners(mTarget);
+		}
+
+		private void loadRows() {
+			ArrayList<String> images = new ArrayList<>();
+			ArrayList<Integer> delays = new ArrayList<>();
+
+			Cursor c = mContext.getContentResolver().query(EmotesContract.Emote.CONTENT_URI,
+					new String[] { EmotesContract.Emote.COLUMN_IMAGE, EmotesContract.Emote.COLUMN_DELAY },
+					EmotesContract.Emote.COLUMN_NAME + "=?", new String[] { mTarget.mName },
+					EmotesContract.Emote.COLUMN_INDEX + " ASC");
+			if (c != null) {
+				try {
+					final int POS_IMAGE = c.getColumnIndex(EmotesContract.Emote.COLUMN_IMAGE);
+					final int POS_DELAY = c.getColumnIndex(EmotesContract.Emote.COLUMN_DELAY);
+					while (c.moveToNext()) {
+						images.add(c.getString(POS_IMAGE));
+						delays.add(c.getInt(POS_DELAY));
+					}
+				} finally {
+					c.close();
+				}
+			}
+
+			synchronized (AnimationFrameCache.this) {
+				mTarget.mImages = images.toArray(new String[images.size()]);
+				mTarget.mDelays = new int[delays.size()];
+				for (int i = 0; i < delays.size(); i++) {
+					mTarget.mDelays[i] = delays.get(i);
+				}
+			}
+		}
+	}
+}
@@ -34,6 +34,7 @@ import android.view.MenuItem;
 import com.trellmor.berrymotes.R;
 import com.trellmor.berrymotes.provider.FileContract;
 import com.trellmor.berrymotes.util.PreloadImageTask;
+import com.trellmor.berrymotes.util.SubredditUsage;
 import com.trellmor.widget.ShareActionProvider;
 
 /**
@@ -50,6 +51,7 @@ public class EmoteDetailActivity extends AppCompatActivity implements EmoteDetai
 	private SupportMenuItem mMenuShare;
 	private ShareActionProvider mShareActionProvider;
 	private Intent mShareIntent;
+	private String mSubreddit;
 
 	@SuppressLint("NewApi")
 	@Override
@@ -123,8 +125,9 @@ public class EmoteDetailActivity extends AppCompatActivity implements EmoteDetai
 	}
 
 	@Override
-	public void onEmoteLoaded(String name, boolean apng) {
+	public void onEmoteLoaded(String name, String subreddit, boolean apng) {
 		setTitle(name);
+		mSubreddit = subreddit;
 		mShareIntent = new Intent(Intent.ACTION_SEND);
 		mShareIntent.setType("image/*");
 		mShareIntent.putExtra(Intent.EXTRA_STREAM, FileContract.getUriForEmote(name, apng));
@@ -134,6 +137,7 @@ public class EmoteDetailActivity extends AppCompatActivity implements EmoteDetai
 	@Override
 	public boolean onShareTargetSelected(ShareActionProvider source, Intent intent) {
 		Uri uri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+		SubredditUsage.record(this, mSubreddit);
 
 		FragmentManager fm = getFragmentManager();
 		final LoadingDialog dialog = LoadingDialog.newInstance(R.string.loading_image);
@@ -28,10 +28,11 @@ import android.content.Context;
 import android.content.CursorLoader;
 import android.content.Loader;
 import android.database.Cursor;
+import android.graphics.drawable.Animatable;
 import android.graphics.drawable.AnimationDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -39,10 +40,8 @@ import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.Toast;
 
-import com.trellmor.berrymotes.EmoteGetter;
 import com.trellmor.berrymotes.R;
 import com.trellmor.berrymotes.api.*;
-import com.trellmor.berrymotes.loader.ScalingEmoteLoader;
 import com.trellmor.berrymotes.provider.EmotesContract;
 import com.trellmor.berrymotes.util.Installation;
 
@@ -52,7 +51,7 @@ import com.trellmor.berrymotes.util.Installation;
  * {@link EmoteDetailActivity} on handsets.
  */
 public class EmoteDetailFragment extends Fragment implements
-		LoaderManager.LoaderCallbacks<Cursor> {
+		LoaderManager.LoaderCallbacks<Cursor>, AnimationFrameCache.Listener {
 	/**
 	 * The fragment argument representing the item ID that this fragment
 	 * represents.
@@ -61,6 +60,9 @@ public class EmoteDetailFragment extends Fragment implements
 
 	public static final int LOADER_ID = 2000;
 
+	// Rows of emotes that are about to be shown, filled by the grid
+	private static final LruCache<Long, EmoteRow> sPrefetched = new LruCache<>(8);
+
 	private Button mTextEmoteName;
 	private ImageView mImageEmote;
 	private boolean mViewLoaded = false;
@@ -71,6 +73,8 @@ public class EmoteDetailFragment extends Fragment implements
 	private String mName = null;
 	private String mSubreddit = null;
 	private boolean mIsAPNG;
+	private AnimationFrameCache.Frames mFrames = null;
+	private int mFramesShown = 0;
 
 	/**
 	 * The fragment's current callback object, which is notified of list item
@@ -87,7 +91,7 @@ public class EmoteDetailFragment extends Fragment implements
 		/**
 		 * Callback for when an item has been selected.
 		 */
-		public void onEmoteLoaded(String name, boolean apng);
+		public void onEmoteLoaded(String name, String subreddit, boolean apng);
 	}
 
 	/**
@@ -96,7 +100,7 @@ public class EmoteDetailFragment extends Fragment implements
 	 */
 	private static final Callbacks sDummyCallbacks = new Callbacks() {
 		@Override
-		public void onEmoteLoaded(String name, boolean apng) {
+		public void onEmoteLoaded(String name, String subreddit, boolean apng) {
 		}
 	};
 
@@ -108,12 +112,26 @@ public class EmoteDetailFragment extends Fragment implements
 	public EmoteDetailFragment() {
 	}
 
+	/**
+	 * Warm up the data of an emote before its detail view is opened, the
+	 * fragment then shows it without waiting for its loader.
+	 */
+	public static void prefetch(Context context, long id, String name, boolean apng, String subreddit) {
+		sPrefetched.put(id, new EmoteRow(name, apng, subreddit));
+		AnimationFrameCache.getInstance(context).prefetch(name);
+	}
+
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 
 		if (getArguments().containsKey(ARG_EMOTE_ID)) {
 			mEmoteId = getArguments().getLong(ARG_EMOTE_ID);
+
+			EmoteRow row = sPrefetched.get(mEmoteId);
+			if (row != null) {
+				showEmote(row.name, row.subreddit, row.apng);
+			}
 			getLoaderManager().initLoader(LOADER_ID, null, this);
 		}
 	}
@@ -159,6 +177,13 @@ public class EmoteDetailFragment extends Fragment implements
 		mCallbacks = (Callbacks) activity;
 	}
 
+	@Override
+	public void onDestroy() {
+		releaseFrames();
+
+		super.onDestroy();
+	}
+
 	@Override
 	public void onDetach() {
 		super.onDetach();
@@ -170,8 +195,8 @@ public class EmoteDetailFragment extends Fragment implements
 	private void loadData() {
 		if (mViewLoaded && mDataLoaded) {
 			mImageEmote.setBackgroundDrawable(mEmote);
-			if (mEmote instanceof AnimationDrawable) {
-				((AnimationDrawable)mEmote).start();
+			if (mEmote instanceof Animatable) {
+				((Animatable)mEmote).start();
 			}
 			mTextEmoteName.setText(mName);
 		}
@@ -231,34 +256,99 @@ public class EmoteDetailFragment extends Fragment implements
 	public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
 		if (data != null && data.getCount() > 0) {
 			data.moveToFirst();
-			mName = data.getString(data.getColumnIndex(EmotesContract.Emote.COLUMN_NAME));
-			mIsAPNG = data.getInt(data.getColumnIndex(EmotesContract.Emote.COLUMN_APNG)) == 1;
-			mSubreddit = data.getString(data.getColumnIndex(EmotesContract.Emote.COLUMN_SUBREDDIT));
-			mCallbacks.onEmoteLoaded(mName, mIsAPNG);
+			showEmote(data.getString(data.getColumnIndex(EmotesContract.Emote.COLUMN_NAME)),
+					data.getString(data.getColumnIndex(EmotesContract.Emote.COLUMN_SUBREDDIT)),
+					data.getInt(data.getColumnIndex(EmotesContract.Emote.COLUMN_APNG)) == 1);
+		}
+	}
+
+	private void showEmote(String name, String subreddit, boolean apng) {
+		boolean sameEmote = name.equals(mName) && mFrames != null;
+
+		mName = name;
+		mIsAPNG = apng;
+		mSubreddit = subreddit;
+		mCallbacks.onEmoteLoaded(mName, mSubreddit, mIsAPNG);
+		if (sameEmote) {
+			// Already shown from the prefetched row
+			return;
+		}
+
+		if (mImageEmote != null) {
 			mImageEmote.setBackgroundDrawable(null);
-			LoadEmoteTask task = new LoadEmoteTask();
-			task.execute(mName);
 		}
+
+		releaseFrames();
+		mEmote = null;
+		mDataLoaded = false;
+		mFrames = AnimationFrameCache.getInstance(getActivity()).acquire(mName, this);
+		onFramesDecoded(mFrames);
 	}
 
 	@Override
 	public void onLoaderReset(Loader<Cursor> loader) {
 	}
 
-	private class LoadEmoteTask extends AsyncTask<String, Void, Drawable> {
+	@Override
+	public void onFramesDecoded(AnimationFrameCache.Frames frames) {
+		if (frames != mFrames || !isAdded()) {
+			return;
+		}
 
-		@Override
-		protected Drawable doInBackground(String... params) {
-			EmoteGetter getter = new EmoteGetter(getActivity(), new ScalingEmoteLoader(getActivity()));
-			return getter.getDrawable(mName);
+		int decoded = frames.getDecodedCount();
+		if (decoded <= mFramesShown) {
+			return;
 		}
 
-		@Override
-		protected void onPostExecute(Drawable result) {
-			mEmote = result;
+		if (frames.getFrameCount() == 1) {
+			mEmote = frames.newFrame(0, getResources());
+		} else if (frames.isStreamed()) {
+			// Too large to keep all frames in memory
+			mEmote = new FrameSequenceDrawable(frames.newFrame(0, getResources()),
+					frames.getImages(), frames.getDelays());
+		} else {
+			// Frames are added to the running animation as they are decoded
+			AnimationDrawable animation;
+			if (mEmote instanceof AnimationDrawable) {
+				animation = (AnimationDrawable) mEmote;
+			} else {
+				animation = new AnimationDrawable();
+				animation.setOneShot(false);
+			}
+			for (int i = mFramesShown; i < decoded; i++) {
+				animation.addFrame(frames.newFrame(i, getResources()), frames.getDelay(i));
+			}
+			mEmote = animation;
+		}
+
+		boolean firstFrame = mFramesShown == 0;
+		mFramesShown = decoded;
+		if (firstFrame) {
 			mDataLoaded = true;
 			loadData();
 		}
+	}
+
+	private static class EmoteRow {
+		final String name;
+		final boolean apng;
+		final String subreddit;
+
+		EmoteRow(String name, boolean apng, String subreddit) {
+			this.name = name;
+			this.apng = apng;
+			this.subreddit = subreddit;
+		}
+	}
 
+	private void releaseFrames() {
+		if (mEmote instanceof FrameSequenceDrawable) {
+			((FrameSequenceDrawable) mEmote).recycle();
+		}
+		if (mFrames != null) {
+			AnimationFrameCache.getInstance(getActivity()).release(mFrames, this);
+			mFrames = null;
+			mFramesShown = 0;
+		}
 	}
 }
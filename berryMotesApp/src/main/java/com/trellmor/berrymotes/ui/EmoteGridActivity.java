@@ -45,6 +45,7 @@ import com.trellmor.berrymotes.provider.FileContract;
 import com.trellmor.berrymotes.sync.SyncUtils;
 import com.trellmor.berrymotes.util.AlarmSetter;
 import com.trellmor.berrymotes.util.PreloadImageTask;
+import com.trellmor.berrymotes.util.SubredditUsage;
 import com.trellmor.widget.ShareActionProvider;
 
 /**
@@ -75,6 +76,7 @@ public class EmoteGridActivity extends AppCompatActivity implements EmoteGridFra
 	private SupportMenuItem mMenuReport;
 	private ShareActionProvider mShareActionProvider;
 	private EmoteGridFragment mGridFragment;
+	private String mSubreddit;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -230,7 +232,8 @@ public class EmoteGridActivity extends AppCompatActivity implements EmoteGridFra
 	}
 
 	@Override
-	public void onEmoteLoaded(String name, boolean apng) {
+	public void onEmoteLoaded(String name, String subreddit, boolean apng) {
+		mSubreddit = subreddit;
 		if (mMenuShare != null) {
 			Intent shareIntent = new Intent(Intent.ACTION_SEND);
 			shareIntent.setType("image/*");
@@ -244,6 +247,7 @@ public class EmoteGridActivity extends AppCompatActivity implements EmoteGridFra
 	@Override
 	public boolean onShareTargetSelected(ShareActionProvider source, Intent intent) {
 		Uri uri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+		SubredditUsage.record(this, mSubreddit);
 
 		FragmentManager fm = getFragmentManager();
 		final LoadingDialog dialog = LoadingDialog.newInstance(R.string.loading_image);
@@ -273,12 +277,14 @@ public class EmoteGridActivity extends AppCompatActivity implements EmoteGridFra
 
 	private void pickEmote(long id) {
 		Cursor c = getContentResolver().query(EmotesContract.Emote.CONTENT_URI,
-				new String[]{EmotesContract.Emote.COLUMN_NAME, EmotesContract.Emote.COLUMN_APNG},
+				new String[]{EmotesContract.Emote.COLUMN_NAME, EmotesContract.Emote.COLUMN_APNG,
+						EmotesContract.Emote.COLUMN_SUBREDDIT},
 				BaseColumns._ID + "=?", new String[]{Long.toString(id)}, null);
 
 		if (c.moveToFirst()) {
 			String name = c.getString(c.getColumnIndex(EmotesContract.Emote.COLUMN_NAME));
 			boolean apng = c.getInt(c.getColumnIndex(EmotesContract.Emote.COLUMN_APNG)) == 1;
+			SubredditUsage.record(this, c.getString(c.getColumnIndex(EmotesContract.Emote.COLUMN_SUBREDDIT)));
 
 			// Only code
 			if (EmoteUtils.ACTION_GET_CODE.equals(getIntent().getAction())) {
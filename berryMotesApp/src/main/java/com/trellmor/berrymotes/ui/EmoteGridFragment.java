@@ -21,9 +21,11 @@ package com.trellmor.berrymotes.ui;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.Fragment;
+import android.database.Cursor;
 import android.os.Build;
 import android.os.Bundle;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
@@ -32,6 +34,7 @@ import android.widget.GridView;
 import android.widget.ListView;
 
 import com.trellmor.berrymotes.R;
+import com.trellmor.berrymotes.provider.EmotesContract;
 
 public class EmoteGridFragment extends Fragment {
 	private GridView mGridEmotes;
@@ -140,6 +143,44 @@ public class EmoteGridFragment extends Fragment {
 				mCallbacks.onItemSelected(id);
 			}
 		});
+
+		// Warm up the detail view while the finger is still down
+		mGridEmotes.setOnTouchListener(new View.OnTouchListener() {
+			@Override
+			public boolean onTouch(View v, MotionEvent event) {
+				if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+					prefetch(mGridEmotes.pointToPosition((int) event.getX(), (int) event.getY()));
+				}
+				return false;
+			}
+		});
+		mGridEmotes.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+			@Override
+			public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+				prefetch(position);
+			}
+
+			@Override
+			public void onNothingSelected(AdapterView<?> parent) {
+			}
+		});
+	}
+
+	private void prefetch(int position) {
+		if (position == GridView.INVALID_POSITION) {
+			return;
+		}
+
+		Cursor c = (Cursor) mGridEmotes.getItemAtPosition(position);
+		if (c == null) {
+			return;
+		}
+
+		EmoteDetailFragment.prefetch(getActivity(),
+				c.getLong(c.getColumnIndex(EmotesContract.Emote._ID)),
+				c.getString(c.getColumnIndex(EmotesContract.Emote.COLUMN_NAME)),
+				c.getInt(c.getColumnIndex(EmotesContract.Emote.COLUMN_APNG)) == 1,
+				c.getString(c.getColumnIndex(EmotesContract.Emote.COLUMN_SUBREDDIT)));
 	}
 
 	/**
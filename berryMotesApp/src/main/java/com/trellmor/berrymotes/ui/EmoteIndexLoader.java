@@ -0,0 +1,66 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.ui;
+
+import android.content.Context;
+import android.content.CursorLoader;
+import android.database.Cursor;
+
+import com.trellmor.berrymotes.provider.EmoteIndexSnapshot;
+import com.trellmor.berrymotes.provider.EmotesContract;
+
+import java.util.List;
+
+/**
+ * Loads the emote grid from the {@link EmoteIndexSnapshot} and falls back to
+ * the emotes provider if there is no snapshot (first run or sync in progress)
+ * or the projection needs columns the snapshot doesn't store.
+ */
+class EmoteIndexLoader extends CursorLoader {
+	private final List<String> mNames;
+	private final List<String> mSubreddits;
+	private final ForceLoadContentObserver mObserver;
+
+	public EmoteIndexLoader(Context context, String[] projection, String selection,
+			String[] selectionArgs, List<String> names, List<String> subreddits) {
+		super(context, EmotesContract.Emote.CONTENT_URI, projection, selection,
+				selectionArgs, EmotesContract.Emote.COLUMN_NAME + " ASC");
+		mNames = names;
+		mSubreddits = subreddits;
+		mObserver = new ForceLoadContentObserver();
+	}
+
+	@Override
+	public Cursor loadInBackground() {
+		EmoteIndexSnapshot snapshot = EmoteIndexSnapshot.open(getContext());
+		if (snapshot == null) {
+			return super.loadInBackground();
+		}
+
+		Cursor cursor = snapshot.query(getProjection(), mNames, mSubreddits);
+		if (cursor == null) {
+			return super.loadInBackground();
+		}
+		// Reload when the sync changes the emotes, the snapshot is removed
+		// while a sync is writing and replaced once it is done
+		cursor.registerContentObserver(mObserver);
+		cursor.setNotificationUri(getContext().getContentResolver(), getUri());
+		return cursor;
+	}
+}
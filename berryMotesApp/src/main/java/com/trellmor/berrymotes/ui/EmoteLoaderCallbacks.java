@@ -25,7 +25,6 @@ import com.trellmor.berrymotes.provider.EmotesContract;
 
 import android.app.LoaderManager;
 import android.content.Context;
-import android.content.CursorLoader;
 import android.content.Loader;
 import android.database.Cursor;
 import android.os.Bundle;
@@ -39,7 +38,8 @@ class EmoteLoaderCallbacks implements LoaderManager.LoaderCallbacks<Cursor> {
 			EmotesContract.Emote._ID,
 			EmotesContract.Emote.COLUMN_NAME,
 			EmotesContract.Emote.COLUMN_IMAGE,
-			EmotesContract.Emote.COLUMN_APNG };
+			EmotesContract.Emote.COLUMN_APNG,
+			EmotesContract.Emote.COLUMN_SUBREDDIT };
 
 	public static final String ARG_QUERY = "query";
 
@@ -52,11 +52,13 @@ class EmoteLoaderCallbacks implements LoaderManager.LoaderCallbacks<Cursor> {
 	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
 		StringBuilder selection = new StringBuilder(EmotesContract.Emote.COLUMN_INDEX + "=?");
 		String[] selectionArgs;
+		List<String> names = null;
+		List<String> subreddits = null;
 		if (args != null && args.containsKey(ARG_QUERY)) {
 			String[] selections = args.getString(ARG_QUERY).trim().split(" +");
 
-			List<String> names = new ArrayList<>(selections.length);
-			List<String> subreddits = new ArrayList<>(selections.length);
+			names = new ArrayList<>(selections.length);
+			subreddits = new ArrayList<>(selections.length);
 			for (String sel : selections) {
 				if (sel.startsWith("sr:")) {
 					sel = sel.replaceFirst("sr:", "");
@@ -92,9 +94,8 @@ class EmoteLoaderCallbacks implements LoaderManager.LoaderCallbacks<Cursor> {
 		}
 		selectionArgs[0] = "0";
 
-		return new CursorLoader(mContext, EmotesContract.Emote.CONTENT_URI,
-				PROJECTION, selection.toString(), selectionArgs,
-				EmotesContract.Emote.COLUMN_NAME + " ASC");
+		return new EmoteIndexLoader(mContext, PROJECTION, selection.toString(),
+				selectionArgs, names, subreddits);
 	}
 
 	@Override
@@ -0,0 +1,282 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.ui;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Plays an emote animation by decoding its frames while it runs.
+ *
+ * Only a small ring of frame bitmaps exists at any time: the frame on screen
+ * and the next decoded frames. A background thread decodes ahead into the
+ * bitmaps of frames that were already shown, so memory use doesn't grow with
+ * the number of frames. Call {@link #recycle()} once the drawable is no longer
+ * used.
+ */
+class FrameSequenceDrawable extends Drawable implements Animatable, Runnable {
+	private static final int RING_SIZE = 3;
+	private static final int MIN_DELAY = 20;
+	// Retry interval while the decoder is behind
+	private static final int WAIT_DELAY = 10;
+
+	private static Handler sDecodeHandler = null;
+
+	private final Drawable mPoster;
+	private final String[] mImages;
+	private final int[] mDelays;
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	private final Object mLock = new Object();
+	// Guarded by mLock
+	private final ArrayDeque<Frame> mReady = new ArrayDeque<>();
+	private final ArrayList<Bitmap> mFree = new ArrayList<>();
+	private int mNextDecode = 0;
+	private boolean mDecodeScheduled = false;
+	private boolean mRecycled = false;
+
+	// Main thread only
+	private Frame mFront = null;
+	private boolean mRunning = false;
+
+	/**
+	 * @param poster Drawn until the first frame is decoded, also defines the
+	 *               intrinsic size
+	 * @param images Frame image files
+	 * @param delays Frame delays in milliseconds
+	 */
+	public FrameSequenceDrawable(Drawable poster, String[] images, int[] delays) {
+		mPoster = poster;
+		mImages = images;
+		mDelays = delays;
+	}
+
+	private static synchronized Handler getDecodeHandler() {
+		if (sDecodeHandler == null) {
+			HandlerThread thread = new HandlerThread("FrameSequenceDecoder",
+					Process.THREAD_PRIORITY_BACKGROUND);
+			thread.start();
+			sDecodeHandler = new Handler(thread.getLooper());
+		}
+		return sDecodeHandler;
+	}
+
+	@Override
+	public void draw(Canvas canvas) {
+		if (mFront != null) {
+			canvas.drawBitmap(mFront.bitmap, null, getBounds(), mPaint);
+		} else if (mPoster != null) {
+			mPoster.setBounds(getBounds());
+			mPoster.draw(canvas);
+		}
+	}
+
+	@Override
+	public int getIntrinsicWidth() {
+		return (mPoster != null) ? mPoster.getIntrinsicWidth() : -1;
+	}
+
+	@Override
+	public int getIntrinsicHeight() {
+		return (mPoster != null) ? mPoster.getIntrinsicHeight() : -1;
+	}
+
+	@Override
+	public void setAlpha(int alpha) {
+		mPaint.setAlpha(alpha);
+		invalidateSelf();
+	}
+
+	@Override
+	public void setColorFilter(ColorFilter colorFilter) {
+		mPaint.setColorFilter(colorFilter);
+		invalidateSelf();
+	}
+
+	@Override
+	public int getOpacity() {
+		return PixelFormat.TRANSLUCENT;
+	}
+
+	@Override
+	public boolean setVisible(boolean visible, boolean restart) {
+		boolean changed = super.setVisible(visible, restart);
+		if (!visible) {
+			stop();
+		}
+		return changed;
+	}
+
+	@Override
+	public void start() {
+		if (!mRunning && mImages.length > 0) {
+			mRunning = true;
+			requestDecode();
+			scheduleSelf(this, SystemClock.uptimeMillis());
+		}
+	}
+
+	@Override
+	public void stop() {
+		if (mRunning) {
+			mRunning = false;
+			unscheduleSelf(this);
+		}
+	}
+
+	@Override
+	public boolean isRunning() {
+		return mRunning;
+	}
+
+	/**
+	 * Show the next frame, called on the main thread
+	 */
+	@Override
+	public void run() {
+		if (!mRunning) {
+			return;
+		}
+
+		Frame next;
+		synchronized (mLock) {
+			next = mReady.poll();
+			if (next != null && mFront != null) {
+				mFree.add(mFront.bitmap);
+			}
+		}
+		requestDecode();
+
+		if (next == null) {
+			// Decoder is behind, keep the current frame a bit longer
+			scheduleSelf(this, SystemClock.uptimeMillis() + WAIT_DELAY);
+			return;
+		}
+
+		mFront = next;
+		invalidateSelf();
+		scheduleSelf(this, SystemClock.uptimeMillis() + Math.max(mDelays[next.index], MIN_DELAY));
+	}
+
+	/**
+	 * Stop the animation and free all frame bitmaps
+	 */
+	public void recycle() {
+		stop();
+
+		ArrayList<Bitmap> bitmaps = new ArrayList<>();
+		synchronized (mLock) {
+			mRecycled = true;
+			bitmaps.addAll(mFree);
+			mFree.clear();
+			for (Frame frame : mReady) {
+				bitmaps.add(frame.bitmap);
+			}
+			mReady.clear();
+		}
+		if (mFront != null) {
+			bitmaps.add(mFront.bitmap);
+			mFront = null;
+		}
+
+		for (Bitmap bitmap : bitmaps) {
+			bitmap.recycle();
+		}
+	}
+
+	private void requestDecode() {
+		synchronized (mLock) {
+			if (mDecodeScheduled || mRecycled || mReady.size() >= RING_SIZE - 1) {
+				return;
+			}
+			mDecodeScheduled = true;
+		}
+		getDecodeHandler().post(mDecode);
+	}
+
+	private final Runnable mDecode = new Runnable() {
+		@Override
+		public void run() {
+			while (true) {
+				Bitmap reuse;
+				int index;
+				synchronized (mLock) {
+					if (mRecycled || mReady.size() >= RING_SIZE - 1) {
+						mDecodeScheduled = false;
+						return;
+					}
+					reuse = mFree.isEmpty() ? null : mFree.remove(mFree.size() - 1);
+					index = mNextDecode;
+					mNextDecode = (mNextDecode + 1) % mImages.length;
+				}
+
+				Bitmap bitmap = decode(mImages[index], reuse);
+
+				synchronized (mLock) {
+					if (bitmap == null || mRecycled) {
+						mDecodeScheduled = false;
+						if (bitmap != null) {
+							bitmap.recycle();
+						}
+						return;
+					}
+					mReady.add(new Frame(index, bitmap));
+				}
+			}
+		}
+	};
+
+	private static Bitmap decode(String image, Bitmap reuse) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		options.inMutable = true;
+		options.inBitmap = reuse;
+		try {
+			return BitmapFactory.decodeFile(image, options);
+		} catch (IllegalArgumentException e) {
+			// Frame has a different size, it can't reuse the bitmap
+			reuse.recycle();
+			options.inBitmap = null;
+			return BitmapFactory.decodeFile(image, options);
+		}
+	}
+
+	private static class Frame {
+		final int index;
+		final Bitmap bitmap;
+
+		Frame(int index, Bitmap bitmap) {
+			this.index = index;
+			this.bitmap = bitmap;
+		}
+	}
+}
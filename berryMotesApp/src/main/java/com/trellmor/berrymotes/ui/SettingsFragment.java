@@ -57,6 +57,7 @@ public class SettingsFragment extends PreferenceFragment {
 
 		bindPreferenceSummaryToValue(findPreference(Settings.KEY_SYNC_FREQUENCY));
 		bindPreferenceSummaryToValue(findPreference(Settings.KEY_SYNC_CONNECTION));
+		bindPreferenceSummaryToValue(findPreference(Settings.KEY_SYNC_MOBILE_BUDGET));
 		findPreference(Settings.KEY_SYNC_ALL_SUBREDDITS).setOnPreferenceChangeListener(sSubredditChangeListener);
 
 		mPrefLogSend = findPreference(Settings.KEY_LOG_SEND);
@@ -142,6 +143,8 @@ public class SettingsFragment extends PreferenceFragment {
 				if (preference.getKey().equals(Settings.KEY_SYNC_CONNECTION)) {
 					if (stringValue.equals(Settings.VALUE_SYNC_CONNECTION_ALL)) {
 						preference.setSummary(R.string.pref_description_sync_connection_all);
+					} else if (stringValue.equals(Settings.VALUE_SYNC_CONNECTION_BUDGET)) {
+						preference.setSummary(R.string.pref_description_sync_connection_budget);
 					} else {
 						preference.setSummary(R.string.pref_description_sync_connection_wifi);
 
@@ -21,7 +21,6 @@ package com.trellmor.berrymotes.ui;
 import android.app.FragmentManager;
 import android.app.LoaderManager;
 import android.app.SearchManager;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.CursorLoader;
 import android.content.Loader;
@@ -47,6 +46,7 @@ import com.trellmor.berrymotes.provider.SubredditSearchSuggestionProvider;
 public class SubredditActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor>,SubredditSortDialog.SubredditSortDialogListener {
 	private ListView mListSubreddits;
 	private SubredditAdapter mAdapter;
+	private SubredditEnableQueue mEnableQueue;
 	private int mSort = SubredditSortDialog.SORT_NAME;
 	private String mQuery = null;
 
@@ -64,22 +64,28 @@ public class SubredditActivity extends AppCompatActivity implements LoaderManage
 		getSupportActionBar().setDisplayHomeAsUpEnabled(true);
 
 		mListSubreddits = (ListView) findViewById(R.id.list_subreddits);
-		mAdapter = new SubredditAdapter(this);
+		mEnableQueue = new SubredditEnableQueue(getContentResolver());
+		mAdapter = new SubredditAdapter(this, mEnableQueue);
 		mListSubreddits.setAdapter(mAdapter);
-		mListSubreddits.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
+		// Checked state is bound from the cursor by the adapter
+		mListSubreddits.setChoiceMode(ListView.CHOICE_MODE_NONE);
 		mListSubreddits.setOnItemClickListener(new AdapterView.OnItemClickListener() {
 			@Override
 			public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
 				CheckedTextView checkView = (CheckedTextView) view;
-				ContentValues values = new ContentValues();
-				values.put(SubredditProvider.SubredditColumns.COLUMN_ENABLED, (checkView.isChecked()) ? 1 : 0);
-				Uri uri = SubredditProvider.CONTENT_URI_SUBREDDITS.buildUpon().appendPath(String.valueOf(id)).build();
-				getContentResolver().update(uri, values, null, null);
+				checkView.toggle();
+				mEnableQueue.setEnabled(id, checkView.isChecked());
 			}
 		});
 		getLoaderManager().initLoader(LOADER_SUBREDDITS, null, this);
 	}
 
+	@Override
+	protected void onPause() {
+		super.onPause();
+		mEnableQueue.flush();
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		getMenuInflater().inflate(R.menu.subreddit, menu);
@@ -132,13 +138,12 @@ public class SubredditActivity extends AppCompatActivity implements LoaderManage
 
 	@Override
 	public Loader onCreateLoader(int id, Bundle args) {
-		String selection = null;
-		String[] selectionArgs = null;
+		Uri uri = SubredditProvider.CONTENT_URI_SUBREDDITS;
 		String sort = SubredditProvider.SubredditColumns.COLUMN_NAME + " COLLATE NOCASE ASC";
 		if (args != null) {
 			if (args.containsKey(ARG_QUERY)) {
-				selection = SubredditProvider.SubredditColumns.COLUMN_NAME + " LIKE ?";
-				selectionArgs = new String[]{"%" + args.getString(ARG_QUERY).trim() + "%"};
+				uri = SubredditProvider.CONTENT_URI_SEARCH.buildUpon()
+						.appendPath(args.getString(ARG_QUERY).trim()).build();
 			}
 			if (args.containsKey(ARG_SORT)) {
 				switch (args.getInt(ARG_SORT)) {
@@ -152,24 +157,18 @@ public class SubredditActivity extends AppCompatActivity implements LoaderManage
 			}
 		}
 
-		return new CursorLoader(this, SubredditProvider.CONTENT_URI_SUBREDDITS, new String[] {
+		return new CursorLoader(this, uri, new String[] {
 				SubredditProvider.SubredditColumns._ID,
 				SubredditProvider.SubredditColumns.COLUMN_NAME,
 				SubredditProvider.SubredditColumns.COLUMN_ENABLED,
 				SubredditProvider.SubredditColumns.COLUMN_ADDED,
 				SubredditProvider.SubredditColumns.COLUMN_SIZE},
-				selection, selectionArgs, sort);
+				null, null, sort);
 	}
 
 	@Override
 	public void onLoadFinished(Loader loader, Cursor data) {
 		mAdapter.changeCursor(data);
-
-		final int POS_ENABLED = data.getColumnIndex(SubredditProvider.SubredditColumns.COLUMN_ENABLED);
-		for (int i = 0; i < mListSubreddits.getCount(); i++) {
-			Cursor c = (Cursor) mListSubreddits.getItemAtPosition(i);
-			mListSubreddits.setItemChecked(i, c.getInt(POS_ENABLED) == 1);
-		}
 	}
 
 	@Override
@@ -181,7 +180,7 @@ public class SubredditActivity extends AppCompatActivity implements LoaderManage
 		mQuery = query;
 		mSort = sort;
 		Bundle args = new Bundle();
-		if (query != null && !"".equals(query)) {
+		if (query != null && !"".equals(query.trim())) {
 			args.putString(ARG_QUERY, query);
 		}
 		args.putInt(ARG_SORT, sort);
@@ -26,6 +26,7 @@ import android.text.style.ForegroundColorSpan;
 import android.text.style.RelativeSizeSpan;
 import android.text.style.SuperscriptSpan;
 import android.view.View;
+import android.widget.CheckedTextView;
 import android.widget.ListAdapter;
 import android.widget.ResourceCursorAdapter;
 import android.widget.TextView;
@@ -37,11 +38,15 @@ public class SubredditAdapter extends ResourceCursorAdapter implements ListAdapt
 	private int mPosName;
 	private int mPosSize;
 	private int mPosAdded;
+	private int mPosEnabled;
+	private int mPosId;
+	private final SubredditEnableQueue mEnableQueue;
 
 	private static final long ONE_MONTH = 60L * 60L * 24L * 30L * 1000L;
 
-	public SubredditAdapter(Context context) {
+	public SubredditAdapter(Context context, SubredditEnableQueue enableQueue) {
 		super(context, R.layout.item_subreddit, null, 0);
+		mEnableQueue = enableQueue;
 	}
 
 	@Override
@@ -61,6 +66,9 @@ public class SubredditAdapter extends ResourceCursorAdapter implements ListAdapt
 		}
 
 		((TextView) view).setText(spanBuilder);
+		// Changes that are not written yet win over the database state
+		((CheckedTextView) view).setChecked(mEnableQueue.isEnabled(cursor.getLong(mPosId),
+				cursor.getInt(mPosEnabled) == 1));
 	}
 
 	@Override
@@ -70,6 +78,8 @@ public class SubredditAdapter extends ResourceCursorAdapter implements ListAdapt
 			mPosName = newCursor.getColumnIndex(SubredditProvider.SubredditColumns.COLUMN_NAME);
 			mPosSize = newCursor.getColumnIndex(SubredditProvider.SubredditColumns.COLUMN_SIZE);
 			mPosAdded = newCursor.getColumnIndex(SubredditProvider.SubredditColumns.COLUMN_ADDED);
+			mPosId = newCursor.getColumnIndex(SubredditProvider.SubredditColumns._ID);
+			mPosEnabled = newCursor.getColumnIndex(SubredditProvider.SubredditColumns.COLUMN_ENABLED);
 		}
 		return oldCursor;
 	}
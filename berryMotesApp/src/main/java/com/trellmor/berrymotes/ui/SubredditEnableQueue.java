@@ -0,0 +1,128 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.ui;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.trellmor.berrymotes.provider.SubredditProvider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Write-behind queue for subreddit enabled state.
+ *
+ * Changes are collected on the main thread and written together in one batch
+ * on a background thread a moment after the last change, so toggling many
+ * subreddits causes one transaction and one list reload. Until then
+ * {@link #isEnabled(long, boolean)} returns the queued state.
+ */
+class SubredditEnableQueue {
+	private static final String TAG = SubredditEnableQueue.class.getName();
+
+	private static final long FLUSH_DELAY = 750;
+
+	private final ContentResolver mContentResolver;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	// Main thread only
+	private final HashMap<Long, Boolean> mPending = new HashMap<>();
+	private final HashMap<Long, Boolean> mWriting = new HashMap<>();
+
+	public SubredditEnableQueue(ContentResolver contentResolver) {
+		mContentResolver = contentResolver;
+	}
+
+	public void setEnabled(long id, boolean enabled) {
+		mPending.put(id, enabled);
+		mHandler.removeCallbacks(mFlush);
+		mHandler.postDelayed(mFlush, FLUSH_DELAY);
+	}
+
+	/**
+	 * @param stored Enabled state read from the database
+	 * @return Queued enabled state or stored if there is none
+	 */
+	public boolean isEnabled(long id, boolean stored) {
+		Boolean enabled = mPending.get(id);
+		if (enabled == null) {
+			enabled = mWriting.get(id);
+		}
+		return (enabled != null) ? enabled : stored;
+	}
+
+	/**
+	 * Write queued changes now
+	 */
+	public void flush() {
+		mHandler.removeCallbacks(mFlush);
+		if (mPending.isEmpty()) {
+			return;
+		}
+
+		final HashMap<Long, Boolean> changes = new HashMap<>(mPending);
+		mWriting.putAll(changes);
+		mPending.clear();
+
+		final ArrayList<ContentProviderOperation> batch = new ArrayList<>();
+		for (Map.Entry<Long, Boolean> entry : changes.entrySet()) {
+			batch.add(ContentProviderOperation.newUpdate(SubredditProvider.CONTENT_URI_SUBREDDITS.buildUpon()
+					.appendPath(String.valueOf(entry.getKey())).build())
+					.withValue(SubredditProvider.SubredditColumns.COLUMN_ENABLED, entry.getValue() ? 1 : 0)
+					.build());
+		}
+
+		// Serial, a later flush must not overtake an earlier one
+		AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mContentResolver.applyBatch(SubredditProvider.CONTENT_AUTHORITY, batch);
+				} catch (RemoteException | OperationApplicationException e) {
+					Log.e(TAG, "Error updating subreddits", e);
+				}
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						// Written, the database has the state now
+						for (Map.Entry<Long, Boolean> entry : changes.entrySet()) {
+							if (entry.getValue().equals(mWriting.get(entry.getKey()))) {
+								mWriting.remove(entry.getKey());
+							}
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private final Runnable mFlush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+}
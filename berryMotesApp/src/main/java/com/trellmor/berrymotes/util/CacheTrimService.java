@@ -37,6 +37,7 @@ public class CacheTrimService extends Service {
 	private static final String TAG = CacheTrimService.class.getName();
 	private static final long MAX_CACHE_SIZE = 25 * 1024 * 1024; //25 MB
 	private static final long MAX_CACHE_AGE = 7 * 24 * 60 * 60 * 1000; //One week
+	private static final long ORPHAN_COLLECT_BUDGET = 2000; //Two seconds per run
 
 	@Override
 	public IBinder onBind(Intent intent) {
@@ -48,6 +49,7 @@ public class CacheTrimService extends Service {
 		File cache = this.getCacheDir();
 		new CacheTrimTask().execute(cache);
 		new LogTrimTask(this).execute();
+		new OrphanCollectTask(this).execute();
 		
 		return START_NOT_STICKY;
 	}
@@ -117,4 +119,22 @@ public class CacheTrimService extends Service {
 			return null;
 		}
 	}
+
+	private class OrphanCollectTask extends AsyncTask<Void, Void, Void> {
+		private final Context mContext;
+
+		public OrphanCollectTask(Context context) {
+			mContext = context;
+		}
+
+		@Override
+		protected Void doInBackground(Void... params) {
+			long reclaimed = new OrphanFileCollector(mContext).collect(ORPHAN_COLLECT_BUDGET);
+			if (reclaimed > 0) {
+				Log.i(TAG, "Reclaimed " + reclaimed + " bytes of orphaned emote files");
+			}
+
+			return null;
+		}
+	}
 }
@@ -0,0 +1,178 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.util;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.trellmor.berrymotes.provider.EmotesContract;
+import com.trellmor.berrymotes.sync.GenericAccountService;
+import com.trellmor.berrymotes.sync.SyncUtils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Removes emote images that are no longer referenced by the emotes database,
+ * like files left behind by a crash between the DB update and the delete or
+ * partial downloads.
+ *
+ * Marks all image paths in the database and sweeps the emote directories in
+ * name order. Every call stops after a time budget and the next call
+ * continues with the directory it stopped in.
+ */
+public class OrphanFileCollector {
+	private static final String TAG = OrphanFileCollector.class.getName();
+	private static final String PREF_NEXT_DIR = "orphan_collector_next_dir";
+	private static final String NOMEDIA = ".nomedia";
+	// Younger files may belong to a sync that didn't write its DB rows yet
+	private static final long MIN_AGE = 24 * 60 * 60 * 1000;
+
+	private final Context mContext;
+	private long mDeadline;
+	private long mMinModified;
+	private HashSet<String> mLiveImages;
+
+	public OrphanFileCollector(Context context) {
+		mContext = context;
+	}
+
+	/**
+	 * Sweep the emote directories for unreferenced files
+	 *
+	 * @param budget Time budget in milliseconds
+	 * @return Number of reclaimed bytes
+	 */
+	public long collect(long budget) {
+		if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+			return 0;
+		}
+		if (ContentResolver.isSyncActive(GenericAccountService.getAccount(),
+				EmotesContract.CONTENT_AUTHORITY)) {
+			Log.d(TAG, "Sync active, skipping orphan collection");
+			return 0;
+		}
+		if (SyncUtils.hasInterruptedSync(mContext)) {
+			// Its images have no rows until the sync is resumed
+			Log.d(TAG, "Interrupted sync, skipping orphan collection");
+			return 0;
+		}
+
+		File baseDir = mContext.getExternalFilesDir(null);
+		String[] dirs = (baseDir != null) ? baseDir.list() : null;
+		if (dirs == null) {
+			return 0;
+		}
+		Arrays.sort(dirs);
+
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+		if (prefs.getLong(Settings.KEY_SYNC_LAST_COMPLETE, 0) == 0) {
+			// A new or reset database doesn't know the files yet
+			Log.d(TAG, "No complete sync yet, skipping orphan collection");
+			return 0;
+		}
+
+		mLiveImages = loadLiveImages();
+		if (mLiveImages == null || mLiveImages.isEmpty()) {
+			// Everything would be an orphan, more likely the database is
+			// broken than all emotes gone
+			mLiveImages = null;
+			return 0;
+		}
+		mDeadline = SystemClock.elapsedRealtime() + budget;
+		mMinModified = System.currentTimeMillis() - MIN_AGE;
+
+		String next = prefs.getString(PREF_NEXT_DIR, "");
+
+		long reclaimed = 0;
+		int i = 0;
+		while (i < dirs.length && dirs[i].compareTo(next) < 0) {
+			i++;
+		}
+		for (; i < dirs.length; i++) {
+			reclaimed += sweep(new File(baseDir, dirs[i]));
+			if (isExpired()) {
+				// Continue with this directory next time
+				break;
+			}
+		}
+
+		prefs.edit().putString(PREF_NEXT_DIR, (i < dirs.length) ? dirs[i] : "").apply();
+		mLiveImages = null;
+
+		return reclaimed;
+	}
+
+	private long sweep(File file) {
+		if (file.isDirectory()) {
+			long reclaimed = 0;
+			File[] files = file.listFiles();
+			if (files != null) {
+				for (File child : files) {
+					if (isExpired()) {
+						break;
+					}
+					reclaimed += sweep(child);
+				}
+			}
+			return reclaimed;
+		}
+
+		if (NOMEDIA.equals(file.getName()) || mLiveImages.contains(file.getAbsolutePath())
+				|| file.lastModified() >= mMinModified) {
+			return 0;
+		}
+
+		long length = file.length();
+		if (file.delete()) {
+			Log.d(TAG, "Deleted orphaned file " + file.getName());
+			return length;
+		}
+		return 0;
+	}
+
+	private boolean isExpired() {
+		return SystemClock.elapsedRealtime() > mDeadline;
+	}
+
+	private HashSet<String> loadLiveImages() {
+		Cursor c = mContext.getContentResolver().query(EmotesContract.Emote.CONTENT_URI_DISTINCT,
+				new String[] { EmotesContract.Emote.COLUMN_IMAGE }, null, null, null);
+		if (c == null) {
+			return null;
+		}
+
+		try {
+			HashSet<String> images = new HashSet<>(c.getCount());
+			while (c.moveToNext()) {
+				images.add(c.getString(0));
+			}
+			return images;
+		} finally {
+			c.close();
+		}
+	}
+}
@@ -21,7 +21,9 @@ public class Settings {
 	public final static String KEY_BACKGROUND = "background";
 	public final static String KEY_SYNC_CONNECTION = "sync_connection";
 	public final static String KEY_SYNC_FREQUENCY = "sync_frequency";
+	public final static String KEY_SYNC_MOBILE_BUDGET = "sync_mobile_budget";
 	public final static String KEY_SYNC_LAST_MODIFIED = "sync_last_modified";
+	public final static String KEY_SYNC_LAST_COMPLETE = "sync_last_complete";
 	public final static String KEY_LOG = "log";
 	public final static String KEY_LOG_DELETE = "log_delete";
 	public final static String KEY_LOG_SEND = "log_send";
@@ -31,4 +33,5 @@ public class Settings {
 
 	public final static String VALUE_SYNC_CONNECTION_WIFI = "wifi";
 	public final static String VALUE_SYNC_CONNECTION_ALL = "all";
+	public final static String VALUE_SYNC_CONNECTION_BUDGET = "budget";
 }
@@ -0,0 +1,73 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.util;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
+
+import com.trellmor.berrymotes.provider.SubredditProvider;
+
+/**
+ * Counts how often emotes of a subreddit are picked or shared, the sync uses
+ * this to download the most used subreddits first.
+ */
+public class SubredditUsage {
+	public static void record(Context context, String subreddit) {
+		if (subreddit == null) {
+			return;
+		}
+
+		new RecordUsageTask(context.getApplicationContext()).execute(subreddit);
+	}
+
+	private static class RecordUsageTask extends AsyncTask<String, Void, Void> {
+		private final Context mContext;
+
+		public RecordUsageTask(Context context) {
+			mContext = context;
+		}
+
+		@Override
+		protected Void doInBackground(String... params) {
+			ContentResolver resolver = mContext.getContentResolver();
+			String[] selectionArgs = new String[] { params[0] };
+
+			Cursor c = resolver.query(SubredditProvider.CONTENT_URI_SUBREDDITS,
+					new String[] { SubredditProvider.SubredditColumns.COLUMN_USAGE },
+					SubredditProvider.SubredditColumns.COLUMN_NAME + "=?", selectionArgs, null);
+			if (c != null) {
+				try {
+					if (c.moveToFirst()) {
+						ContentValues values = new ContentValues();
+						values.put(SubredditProvider.SubredditColumns.COLUMN_USAGE, c.getLong(0) + 1);
+						resolver.update(SubredditProvider.CONTENT_URI_SUBREDDITS, values,
+								SubredditProvider.SubredditColumns.COLUMN_NAME + "=?", selectionArgs);
+					}
+				} finally {
+					c.close();
+				}
+			}
+
+			return null;
+		}
+	}
+}
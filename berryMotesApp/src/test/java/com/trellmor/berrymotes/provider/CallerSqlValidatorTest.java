@@ -0,0 +1,111 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.trellmor.berrymotes.provider;
+
+import org.junit.Test;
+
+import static org.junit.Assert.fail;
+
+public class CallerSqlValidatorTest {
+	private final CallerSqlValidator mValidator = new CallerSqlValidator(
+			"_id", "name", "apng", "image", "hash", "index", "delay", "subreddit");
+
+	@Test
+	public void acceptsSelections() {
+		String[] selections = new String[] {
+				null,
+				"",
+				"name=?",
+				"name = ? AND apng = 0",
+				"subreddit='from'",
+				"subreddit = 'select * from logs'",
+				"subreddit = 'it''s'",
+				"name LIKE ? ESCAPE '\\'",
+				"(name=? OR hash=?) AND NOT apng=1",
+				"\"index\" > -1",
+				"subreddit IN (?, ?, 'mlp')",
+				"delay BETWEEN 10 AND 100",
+				"hash IS NOT NULL",
+				"name NOT LIKE 'a%' COLLATE NOCASE",
+				"name = subreddit",
+		};
+		for (String selection : selections) {
+			mValidator.checkSelection(selection);
+		}
+	}
+
+	@Test
+	public void rejectsSelections() {
+		String[] selections = new String[] {
+				"name IN (SELECT message FROM logs)",
+				"name=? UNION SELECT * FROM subreddits",
+				"EXISTS (SELECT 1 FROM logs)",
+				"message=?",
+				"name=?) OR (1=1",
+				"name=? --",
+				"name=?; DROP TABLE emotes",
+				"lower(name)=?",
+				"name=? AND",
+				"name='unterminated",
+				"\"logs\".message=?",
+				"name = (SELECT name FROM subreddits LIMIT 1)",
+		};
+		for (String selection : selections) {
+			try {
+				mValidator.checkSelection(selection);
+				fail("Accepted " + selection);
+			} catch (SecurityException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void acceptsSortOrders() {
+		String[] sortOrders = new String[] {
+				null,
+				"name",
+				"name ASC",
+				"subreddit COLLATE NOCASE DESC, \"index\"",
+		};
+		for (String sortOrder : sortOrders) {
+			mValidator.checkSortOrder(sortOrder);
+		}
+	}
+
+	@Test
+	public void rejectsSortOrders() {
+		String[] sortOrders = new String[] {
+				"(SELECT message FROM logs)",
+				"name LIMIT 1",
+				"random()",
+				"name,",
+				"name ASC DESC",
+		};
+		for (String sortOrder : sortOrders) {
+			try {
+				mValidator.checkSortOrder(sortOrder);
+				fail("Accepted " + sortOrder);
+			} catch (SecurityException e) {
+				// Expected
+			}
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.provider;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DatabaseConfigTest {
+	@Test
+	public void recordsWaits() {
+		DatabaseConfig config = new DatabaseConfig("test.db", 4096);
+		assertEquals("test.db: 0 transactions, waited 0 ms, max 0 ms", config.toString());
+
+		config.recordWait(10);
+		config.recordWait(30);
+		config.recordWait(5);
+		assertEquals("test.db: 3 transactions, waited 45 ms, max 30 ms", config.toString());
+	}
+
+	@Test
+	public void recordsConcurrentWaits() throws InterruptedException {
+		final DatabaseConfig config = new DatabaseConfig("test.db", 4096);
+		ArrayList<Thread> writers = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final int max = t + 1;
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						config.recordWait((i % 2 == 0) ? max : 0);
+					}
+				}
+			});
+			writer.start();
+			writers.add(writer);
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		// 5000 waits of 1, 2, 3 and 4 ms
+		assertEquals("test.db: 40000 transactions, waited 50000 ms, max 4 ms", config.toString());
+	}
+
+	@Test
+	public void reportsAllDatabases() {
+		assertTrue(DatabaseConfig.getLockWaitStats().startsWith("berrymotes.db: "));
+	}
+}
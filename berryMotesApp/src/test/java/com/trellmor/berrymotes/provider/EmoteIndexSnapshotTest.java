@@ -0,0 +1,65 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.trellmor.berrymotes.provider;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EmoteIndexSnapshotTest {
+	@Test
+	public void likeWildcards() {
+		assertTrue(EmoteIndexSnapshot.like("%twi%", "twilight"));
+		assertTrue(EmoteIndexSnapshot.like("%light", "twilight"));
+		assertFalse(EmoteIndexSnapshot.like("twi", "twilight"));
+		assertTrue(EmoteIndexSnapshot.like("%t_i%", "twilight"));
+		assertTrue(EmoteIndexSnapshot.like("%a%b%", "xaxxbx"));
+		assertFalse(EmoteIndexSnapshot.like("%a%b%", "xbxxax"));
+		assertTrue(EmoteIndexSnapshot.like("%%", ""));
+		assertFalse(EmoteIndexSnapshot.like("%_%", ""));
+		assertTrue(EmoteIndexSnapshot.like("%aab%", "aaab"));
+	}
+
+	@Test
+	public void likeWildcardsInQuery() {
+		// The emote grid passes the typed text through, so an underscore
+		// matches any character like it does in SQL
+		assertTrue(EmoteIndexSnapshot.like("%a_b%", "a_b"));
+		assertTrue(EmoteIndexSnapshot.like("%a_b%", "axb"));
+		assertTrue(EmoteIndexSnapshot.like("%50%%", "50"));
+	}
+
+	@Test
+	public void likeFoldsAsciiOnly() {
+		assertTrue(EmoteIndexSnapshot.like("%TWI%", "Twilight"));
+		assertTrue(EmoteIndexSnapshot.like("%twi%", "TWILIGHT"));
+		// SQLite only folds ASCII letters
+		assertFalse(EmoteIndexSnapshot.like("%\u00e4%", "\u00c4"));
+		assertTrue(EmoteIndexSnapshot.like("%\u00e4%", "b\u00e4r"));
+	}
+
+	@Test
+	public void likeSupplementaryCharacters() {
+		// _ matches one character, not one UTF-16 unit
+		assertTrue(EmoteIndexSnapshot.like("a_b", "a\ud83d\ude00b"));
+		assertFalse(EmoteIndexSnapshot.like("a__b", "a\ud83d\ude00b"));
+	}
+}
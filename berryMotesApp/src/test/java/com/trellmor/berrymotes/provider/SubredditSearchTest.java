@@ -0,0 +1,97 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.trellmor.berrymotes.provider;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SubredditSearchTest {
+	@Test
+	public void trigrams() {
+		assertEquals(Arrays.asList("myl", "yli", "lit", "itt", "ttl", "tle"),
+				new ArrayList<>(SubredditSearch.trigrams("MyLittle")));
+		assertEquals(Arrays.asList("abc"), new ArrayList<>(SubredditSearch.trigrams("ABC")));
+		assertTrue(SubredditSearch.trigrams("ab").isEmpty());
+		// Repeated trigrams are only kept once
+		assertEquals(Arrays.asList("aaa", "aab"), new ArrayList<>(SubredditSearch.trigrams("aaaab")));
+	}
+
+	@Test
+	public void shortQueryIsPrefixRange() {
+		ArrayList<String> args = new ArrayList<>();
+		String selection = SubredditSearch.selection(" Ab ", args);
+
+		assertEquals("subreddits.name COLLATE NOCASE >= ? AND subreddits.name COLLATE NOCASE < ?",
+				selection);
+		assertEquals(Arrays.asList("ab", "ab\uffff"), args);
+	}
+
+	@Test
+	public void emptyQueryMatchesAll() {
+		ArrayList<String> args = new ArrayList<>();
+		SubredditSearch.selection("  ", args);
+
+		assertEquals(Arrays.asList("", "\uffff"), args);
+	}
+
+	@Test
+	public void longQueryUsesTrigrams() {
+		ArrayList<String> args = new ArrayList<>();
+		String selection = SubredditSearch.selection("Pony", args);
+
+		assertEquals("subreddits._id IN (SELECT subreddit_id FROM subreddit_trigrams"
+				+ " WHERE trigram IN (?,?) GROUP BY subreddit_id HAVING COUNT(*)=2)"
+				+ " AND subreddits.name LIKE ?", selection);
+		assertEquals(Arrays.asList("pon", "ony", "%pony%"), args);
+	}
+
+	@Test
+	public void repeatedTrigramsCountOnce() {
+		// A name contains each of its trigrams once in the index, the HAVING
+		// count must not ask for more
+		ArrayList<String> args = new ArrayList<>();
+		String selection = SubredditSearch.selection("aaaa", args);
+
+		assertTrue(selection, selection.contains("trigram IN (?) "));
+		assertTrue(selection, selection.contains("HAVING COUNT(*)=1)"));
+		assertEquals(Arrays.asList("aaa", "%aaaa%"), args);
+	}
+
+	@Test
+	public void placeholdersMatchArguments() {
+		String[] queries = new String[] { "", "a", "ab", "abc", "abcd", "MyLittlePony", "ababab" };
+		for (String query : queries) {
+			ArrayList<String> args = new ArrayList<>();
+			String selection = SubredditSearch.selection(query, args);
+			int placeholders = 0;
+			for (int i = 0; i < selection.length(); i++) {
+				if (selection.charAt(i) == '?') {
+					placeholders++;
+				}
+			}
+			assertEquals(query, placeholders, args.size());
+		}
+	}
+}
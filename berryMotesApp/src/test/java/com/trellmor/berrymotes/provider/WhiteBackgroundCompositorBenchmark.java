@@ -0,0 +1,102 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.trellmor.berrymotes.provider;
+
+import java.util.Random;
+
+/**
+ * Times {@link WhiteBackgroundCompositor#blend(int)} over emote sized frames
+ * against the floating point reference from
+ * {@link WhiteBackgroundCompositorTest}.
+ *
+ * Not a unit test, run the main method from the IDE or with
+ * {@code java -cp <test classes> ...WhiteBackgroundCompositorBenchmark}.
+ * The decode and bitmap copies need a device and are not measured.
+ */
+public class WhiteBackgroundCompositorBenchmark {
+	private static final int WIDTH = 256;
+	private static final int HEIGHT = 256;
+	private static final int FRAMES = 50;
+	private static final int WARMUP = 5;
+	private static final int RUNS = 10;
+
+	public static void main(String[] args) {
+		// Emote like pixels: a third opaque, a third transparent, the rest
+		// antialiased edges
+		Random random = new Random(42);
+		int[] frame = new int[WIDTH * HEIGHT];
+		for (int i = 0; i < frame.length; i++) {
+			int alpha;
+			switch (random.nextInt(3)) {
+				case 0:
+					alpha = 0xFF;
+					break;
+				case 1:
+					alpha = 0;
+					break;
+				default:
+					alpha = random.nextInt(0x100);
+					break;
+			}
+			frame[i] = (alpha << 24) | (random.nextInt() & 0xFFFFFF);
+		}
+		int[] pixels = new int[frame.length];
+
+		long sink = 0;
+		for (int i = 0; i < WARMUP; i++) {
+			sink += run(frame, pixels, false) + run(frame, pixels, true);
+		}
+
+		long blend = Long.MAX_VALUE;
+		long reference = Long.MAX_VALUE;
+		for (int i = 0; i < RUNS; i++) {
+			long start = System.nanoTime();
+			sink += run(frame, pixels, false);
+			blend = Math.min(blend, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			sink += run(frame, pixels, true);
+			reference = Math.min(reference, System.nanoTime() - start);
+		}
+
+		double count = (double) FRAMES * frame.length;
+		System.out.printf("blend:     %.2f ns/pixel%n", blend / count);
+		System.out.printf("reference: %.2f ns/pixel%n", reference / count);
+		System.out.println("(" + sink + ")");
+	}
+
+	private static long run(int[] frame, int[] pixels, boolean reference) {
+		long sum = 0;
+		for (int f = 0; f < FRAMES; f++) {
+			System.arraycopy(frame, 0, pixels, 0, frame.length);
+			if (reference) {
+				for (int i = 0; i < pixels.length; i++) {
+					pixels[i] = WhiteBackgroundCompositorTest.reference(pixels[i]);
+				}
+			} else {
+				for (int i = 0; i < pixels.length; i++) {
+					pixels[i] = WhiteBackgroundCompositor.blend(pixels[i]);
+				}
+			}
+			sum += pixels[f];
+		}
+		return sum;
+	}
+}
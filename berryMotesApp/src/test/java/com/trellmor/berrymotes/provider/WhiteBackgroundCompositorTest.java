@@ -0,0 +1,70 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.trellmor.berrymotes.provider;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class WhiteBackgroundCompositorTest {
+	@Test
+	public void opaqueUnchanged() {
+		assertEquals(0xFF123456, WhiteBackgroundCompositor.blend(0xFF123456));
+		assertEquals(0xFF000000, WhiteBackgroundCompositor.blend(0xFF000000));
+		assertEquals(0xFFFFFFFF, WhiteBackgroundCompositor.blend(0xFFFFFFFF));
+	}
+
+	@Test
+	public void transparentIsWhite() {
+		assertEquals(0xFFFFFFFF, WhiteBackgroundCompositor.blend(0x00000000));
+		assertEquals(0xFFFFFFFF, WhiteBackgroundCompositor.blend(0x00123456));
+	}
+
+	@Test
+	public void halfTransparent() {
+		// 0 * 128/255 + 255 * 127/255 = 127
+		assertEquals(0xFF7F7F7F, WhiteBackgroundCompositor.blend(0x80000000));
+		// 255 - round(255 * 127/255) = 128
+		assertEquals(0xFF808080, WhiteBackgroundCompositor.blend(0x7F000000));
+		assertEquals(0xFFFF7FBF, WhiteBackgroundCompositor.blend(0x80FF0080));
+	}
+
+	@Test
+	public void matchesReferenceForAllAlphas() {
+		for (int a = 0; a <= 0xFF; a++) {
+			for (int c = 0; c <= 0xFF; c++) {
+				int pixel = (a << 24) | (c << 16) | ((0xFF - c) << 8) | (c ^ 0x55);
+				assertEquals("a=" + a + " c=" + c, reference(pixel),
+						WhiteBackgroundCompositor.blend(pixel));
+			}
+		}
+	}
+
+	/**
+	 * Floating point source over white, rounded to nearest
+	 */
+	static int reference(int pixel) {
+		double a = (pixel >>> 24) / 255.0;
+		int r = (int) Math.round(((pixel >> 16) & 0xFF) * a + 0xFF * (1 - a));
+		int g = (int) Math.round(((pixel >> 8) & 0xFF) * a + 0xFF * (1 - a));
+		int b = (int) Math.round((pixel & 0xFF) * a + 0xFF * (1 - a));
+		return 0xFF000000 | (r << 16) | (g << 8) | b;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import android.net.ConnectivityManager;
+
+import com.trellmor.berrymotes.util.BandwidthExhaustedException;
+import com.trellmor.berrymotes.util.Settings;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class BandwidthBudgetTest {
+	private static final long ONE_HOUR = 60L * 60L * 1000L;
+	private static final long ONE_MB = 1024L * 1024L;
+	// 2016-08-01 10:00 UTC
+	private static final long MORNING = 1470045600000L;
+
+	private FakeClock mClock;
+	private FakePreferences mPreferences;
+	private BandwidthBudget mBudget;
+
+	@Before
+	public void setUp() {
+		mClock = new FakeClock(MORNING);
+		mPreferences = new FakePreferences();
+		mPreferences.edit()
+				.putString(Settings.KEY_SYNC_CONNECTION, Settings.VALUE_SYNC_CONNECTION_BUDGET)
+				.putString(Settings.KEY_SYNC_MOBILE_BUDGET, "1")
+				.commit();
+		mBudget = new BandwidthBudget(mClock, mPreferences, TimeZone.getTimeZone("UTC"));
+		mBudget.setNetwork(ConnectivityManager.TYPE_MOBILE, true);
+	}
+
+	@Test
+	public void countsMeteredBytes() throws IOException {
+		download(100 * 1024, BandwidthBudget.PRIORITY_IMAGE);
+		assertEquals(ONE_MB - 100 * 1024, mBudget.getRemaining());
+	}
+
+	@Test
+	public void unmeteredBytesAreFree() throws IOException {
+		mBudget.setNetwork(ConnectivityManager.TYPE_WIFI, false);
+		download(100 * 1024, BandwidthBudget.PRIORITY_IMAGE);
+		assertEquals(ONE_MB, mBudget.getRemaining());
+	}
+
+	@Test
+	public void resetsAtMidnight() throws IOException {
+		assertEquals(14 * ONE_HOUR, mBudget.getTimeUntilReset());
+		download(100 * 1024, BandwidthBudget.PRIORITY_IMAGE);
+
+		mClock.advance(mBudget.getTimeUntilReset() - 1);
+		assertEquals(ONE_MB - 100 * 1024, mBudget.getRemaining());
+		mClock.advance(1);
+		assertEquals(ONE_MB, mBudget.getRemaining());
+	}
+
+	@Test
+	public void listsMayUseTheReserve() throws IOException {
+		// Images may use 90% of the cap
+		download(ONE_MB - ONE_MB * 10 / 100, BandwidthBudget.PRIORITY_LIST);
+		try {
+			mBudget.checkAvailable(BandwidthBudget.PRIORITY_IMAGE);
+			fail("Images must not use the list reserve");
+		} catch (BandwidthExhaustedException e) {
+			// Expected
+		}
+		mBudget.checkAvailable(BandwidthBudget.PRIORITY_LIST);
+	}
+
+	@Test(expected = BandwidthExhaustedException.class)
+	public void stopsDownloadsWhenUsedUp() throws IOException {
+		download(2 * ONE_MB, BandwidthBudget.PRIORITY_LIST);
+	}
+
+	@Test
+	public void savesBytesOfTheOldNetwork() throws IOException {
+		download(10 * 1024, BandwidthBudget.PRIORITY_IMAGE);
+		mBudget.setNetwork(ConnectivityManager.TYPE_WIFI, false);
+		assertEquals(10 * 1024, mPreferences.getLong("bandwidth_bytes_" + ConnectivityManager.TYPE_MOBILE, 0));
+		assertEquals(0, mPreferences.getLong("bandwidth_bytes_" + ConnectivityManager.TYPE_WIFI, 0));
+	}
+
+	private void download(long bytes, int priority) throws IOException {
+		InputStream is = mBudget.wrap(new ByteArrayInputStream(new byte[(int) bytes]), priority);
+		try {
+			byte[] buffer = new byte[16 * 1024];
+			while (is.read(buffer, 0, buffer.length) != -1) {
+				// Refill the token bucket instead of sleeping
+				mClock.advance(1000);
+			}
+		} finally {
+			is.close();
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import android.net.ConnectivityManager;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the limiter against a local server with injected latency and
+ * response codes
+ */
+public class DownloadLimiterServerTest {
+	private static final int BODY_SIZE = 4096;
+
+	private static final SyncScheduler.Clock NANO_CLOCK = new SyncScheduler.Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public long elapsedRealtime() {
+			return System.nanoTime() / 1000000;
+		}
+	};
+
+	private HttpServer mServer;
+	private ExecutorService mServerThreads;
+	private URL mUrl;
+	private volatile int mLatency = 5;
+	private volatile int mResponseCode = HttpURLConnection.HTTP_OK;
+	private final AtomicInteger mActive = new AtomicInteger();
+	private final AtomicInteger mMaxActive = new AtomicInteger();
+
+	@Before
+	public void setUp() throws IOException {
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		mServerThreads = Executors.newCachedThreadPool();
+		mServer.setExecutor(mServerThreads);
+		mServer.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				int active = mActive.incrementAndGet();
+				int max;
+				do {
+					max = mMaxActive.get();
+				} while (active > max && !mMaxActive.compareAndSet(max, active));
+
+				try {
+					Thread.sleep(mLatency);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				// Before the client can see the response and release its permit
+				mActive.decrementAndGet();
+
+				int code = mResponseCode;
+				byte[] body = new byte[(code == HttpURLConnection.HTTP_OK) ? BODY_SIZE : 0];
+				exchange.sendResponseHeaders(code, (body.length > 0) ? body.length : -1);
+				OutputStream os = exchange.getResponseBody();
+				os.write(body);
+				os.close();
+			}
+		});
+		mServer.start();
+		mUrl = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/emote.png");
+	}
+
+	@After
+	public void tearDown() {
+		mServer.stop(0);
+		mServerThreads.shutdownNow();
+	}
+
+	@Test
+	public void rampsUpOnFastWifi() throws Exception {
+		DownloadLimiter limiter = new DownloadLimiter(NANO_CLOCK);
+		limiter.setNetworkType(ConnectivityManager.TYPE_WIFI);
+
+		download(limiter, 16, 20);
+
+		assertEquals(DownloadLimiter.MAX_LIMIT_WIFI, limiter.getLimit());
+		assertTrue("Server saw " + mMaxActive.get() + " concurrent requests",
+				mMaxActive.get() <= DownloadLimiter.MAX_LIMIT_WIFI);
+		assertTrue(limiter.getThroughput() > 0);
+	}
+
+	@Test
+	public void staysBelowTheMobileLimit() throws Exception {
+		DownloadLimiter limiter = new DownloadLimiter(NANO_CLOCK);
+		limiter.setNetworkType(ConnectivityManager.TYPE_MOBILE);
+
+		download(limiter, 16, 10);
+
+		assertEquals(DownloadLimiter.MAX_LIMIT_MOBILE, limiter.getLimit());
+		assertTrue(mMaxActive.get() <= DownloadLimiter.MAX_LIMIT_MOBILE);
+	}
+
+	@Test
+	public void backsOffWhenThrottled() throws Exception {
+		DownloadLimiter limiter = new DownloadLimiter(NANO_CLOCK);
+		limiter.setNetworkType(ConnectivityManager.TYPE_WIFI);
+		download(limiter, 16, 20);
+		assertEquals(DownloadLimiter.MAX_LIMIT_WIFI, limiter.getLimit());
+
+		// A burst of failures within the decrease interval halves once
+		mResponseCode = 429;
+		download(limiter, DownloadLimiter.MAX_LIMIT_WIFI, 1);
+		assertEquals(DownloadLimiter.MAX_LIMIT_WIFI / 2, limiter.getLimit());
+	}
+
+	@Test
+	public void slowResponsesStopTheRampUp() throws Exception {
+		DownloadLimiter limiter = new DownloadLimiter(NANO_CLOCK);
+		limiter.setNetworkType(ConnectivityManager.TYPE_WIFI);
+		// Learn the latency of the idle link
+		download(limiter, 1, 2);
+		int limit = limiter.getLimit();
+
+		// Congested link, far above the best latency
+		mLatency = 200;
+		download(limiter, 1, 8);
+		assertEquals(limit, limiter.getLimit());
+	}
+
+	/**
+	 * Download from several threads at once
+	 */
+	private void download(final DownloadLimiter limiter, int threads, final int requests) throws Exception {
+		final ArrayList<Throwable> errors = new ArrayList<>();
+		ArrayList<Thread> clients = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			Thread client = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < requests; i++) {
+							fetch(limiter);
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			});
+			client.start();
+			clients.add(client);
+		}
+		for (Thread client : clients) {
+			client.join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+
+	private void fetch(DownloadLimiter limiter) throws IOException, InterruptedException {
+		DownloadLimiter.Permit permit = limiter.acquire();
+		HttpURLConnection con = null;
+		try {
+			con = (HttpURLConnection) mUrl.openConnection();
+			// Keep-alive connections of the test server add a delayed ACK
+			// to some responses, which would look like congestion
+			con.setRequestProperty("Connection", "close");
+			int responseCode = con.getResponseCode();
+			if (responseCode != HttpURLConnection.HTTP_OK) {
+				permit.release(responseCode, 0);
+				return;
+			}
+			long bytes = 0;
+			InputStream is = con.getInputStream();
+			try {
+				byte[] buffer = new byte[1024];
+				int read;
+				while ((read = is.read(buffer)) != -1) {
+					bytes += read;
+				}
+			} finally {
+				is.close();
+			}
+			permit.release(responseCode, bytes);
+		} finally {
+			permit.release(-1, 0);
+			if (con != null) {
+				con.disconnect();
+			}
+		}
+	}
+}
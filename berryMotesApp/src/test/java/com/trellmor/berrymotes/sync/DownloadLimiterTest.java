@@ -0,0 +1,165 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import android.net.ConnectivityManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.HttpURLConnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadLimiterTest {
+	private FakeClock mClock;
+	private DownloadLimiter mLimiter;
+
+	@Before
+	public void setUp() {
+		mClock = new FakeClock(0);
+		mLimiter = new DownloadLimiter(mClock);
+		mLimiter.setNetworkType(ConnectivityManager.TYPE_WIFI);
+	}
+
+	@Test
+	public void growsByOnePerWindow() throws InterruptedException {
+		assertEquals(2, mLimiter.getLimit());
+		succeed(1);
+		assertEquals(2, mLimiter.getLimit());
+		succeed(1);
+		assertEquals(3, mLimiter.getLimit());
+		succeed(3);
+		assertEquals(4, mLimiter.getLimit());
+	}
+
+	@Test
+	public void neverAboveTheNetworkLimit() throws InterruptedException {
+		succeed(100);
+		assertEquals(DownloadLimiter.MAX_LIMIT_WIFI, mLimiter.getLimit());
+
+		mLimiter.setNetworkType(ConnectivityManager.TYPE_MOBILE);
+		assertEquals(DownloadLimiter.MAX_LIMIT_MOBILE, mLimiter.getLimit());
+		succeed(100);
+		assertEquals(DownloadLimiter.MAX_LIMIT_MOBILE, mLimiter.getLimit());
+	}
+
+	@Test
+	public void halvesOncePerInterval() throws InterruptedException {
+		succeed(100);
+		fail(-1);
+		assertEquals(4, mLimiter.getLimit());
+		// Requests started before the decrease
+		fail(503);
+		fail(429);
+		assertEquals(4, mLimiter.getLimit());
+
+		mClock.advance(1000);
+		fail(500);
+		assertEquals(2, mLimiter.getLimit());
+		mClock.advance(1000);
+		fail(-1);
+		mClock.advance(1000);
+		fail(-1);
+		assertEquals(1, mLimiter.getLimit());
+	}
+
+	@Test
+	public void otherResponsesDontChangeTheLimit() throws InterruptedException {
+		succeed(2);
+		assertEquals(3, mLimiter.getLimit());
+		for (int i = 0; i < 10; i++) {
+			fail(HttpURLConnection.HTTP_NOT_MODIFIED);
+			fail(HttpURLConnection.HTTP_NOT_FOUND);
+			mLimiter.acquire().abandon();
+		}
+		assertEquals(3, mLimiter.getLimit());
+	}
+
+	@Test
+	public void slowRequestsStartANewWindow() throws InterruptedException {
+		succeed(1);
+		// More than three times the best latency
+		download(HttpURLConnection.HTTP_OK, 40);
+		succeed(1);
+		assertEquals(2, mLimiter.getLimit());
+		succeed(1);
+		assertEquals(3, mLimiter.getLimit());
+	}
+
+	@Test
+	public void releaseIsIdempotent() throws InterruptedException {
+		DownloadLimiter.Permit first = mLimiter.acquire();
+		DownloadLimiter.Permit second = mLimiter.acquire();
+		first.release(HttpURLConnection.HTTP_OK, 100);
+		first.release(-1, 0);
+		assertEquals(2, mLimiter.getLimit());
+		second.release(-1, 0);
+	}
+
+	@Test
+	public void acquireWaitsForTheLimit() throws InterruptedException {
+		final DownloadLimiter.Permit first = mLimiter.acquire();
+		mLimiter.acquire();
+
+		Thread waiting = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mLimiter.acquire();
+				} catch (InterruptedException e) {
+					// Test ends
+				}
+			}
+		});
+		waiting.start();
+		waiting.join(100);
+		assertTrue(waiting.isAlive());
+
+		first.release(HttpURLConnection.HTTP_NOT_MODIFIED, 0);
+		waiting.join(1000);
+		assertFalse(waiting.isAlive());
+	}
+
+	@Test
+	public void throughputOfFullDownloads() throws InterruptedException {
+		download(HttpURLConnection.HTTP_OK, 100);
+		download(HttpURLConnection.HTTP_NOT_MODIFIED, 100);
+		// 1000 bytes in 100 ms
+		assertEquals(10000, mLimiter.getThroughput());
+	}
+
+	private void succeed(int count) throws InterruptedException {
+		for (int i = 0; i < count; i++) {
+			download(HttpURLConnection.HTTP_OK, 10);
+		}
+	}
+
+	private void fail(int responseCode) throws InterruptedException {
+		download(responseCode, 10);
+	}
+
+	private void download(int responseCode, long latency) throws InterruptedException {
+		DownloadLimiter.Permit permit = mLimiter.acquire();
+		mClock.advance(latency);
+		permit.release(responseCode, 1000);
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.trellmor.berrymotes.sync;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Decodes the fixtures with {@link EmoteListDecoder} and with the Gson
+ * binding it replaced, both must give the same lists.
+ */
+public class EmoteListDecoderTest {
+	/**
+	 * Shape of the subreddit list as Gson used to bind it
+	 */
+	private static class GsonSubreddit {
+		String name;
+		String added;
+		long size;
+	}
+
+	@Test
+	public void emotesMatchGson() throws IOException {
+		HashMap<String, EmoteImage> byHash = new HashMap<>();
+		ArrayList<EmoteImage> decoded;
+		JsonReader reader = new JsonReader(open("emotes.json"));
+		try {
+			decoded = new EmoteListDecoder().readEmotes(reader, byHash);
+		} finally {
+			reader.close();
+		}
+
+		List<EmoteImage> expected;
+		Reader in = open("emotes.json");
+		try {
+			expected = new Gson().fromJson(in, new TypeToken<ArrayList<EmoteImage>>(){}.getType());
+		} finally {
+			in.close();
+		}
+
+		assertEquals(expected.size(), decoded.size());
+		for (int i = 0; i < expected.size(); i++) {
+			EmoteImage e = expected.get(i);
+			EmoteImage d = decoded.get(i);
+			String msg = "emote " + i;
+			assertEquals(msg, e.isApng(), d.isApng());
+			assertEquals(msg, e.getDelay(), d.getDelay());
+			assertEquals(msg, e.getIndex(), d.getIndex());
+			assertEquals(msg, e.getHash(), d.getHash());
+			assertEquals(msg, e.getImage(), d.getImage());
+			assertEquals(msg, e.getSubreddit(), d.getSubreddit());
+			// Gson leaves missing names null, the decoder uses an empty list
+			List<String> names = e.getNames() != null ? e.getNames() : Collections.<String>emptyList();
+			assertEquals(msg, names, d.getNames());
+		}
+	}
+
+	@Test
+	public void emotesByHashKeepsFirst() throws IOException {
+		HashMap<String, EmoteImage> byHash = new HashMap<>();
+		ArrayList<EmoteImage> decoded;
+		JsonReader reader = new JsonReader(open("emotes.json"));
+		try {
+			decoded = new EmoteListDecoder().readEmotes(reader, byHash);
+		} finally {
+			reader.close();
+		}
+
+		// One hash collision in the fixture
+		assertEquals(decoded.size() - 1, byHash.size());
+		assertSame(decoded.get(0), byHash.get("0f3b8a7c1e"));
+		for (EmoteImage emote : decoded) {
+			assertEquals(emote.getImage(), emote.getHash(), byHash.get(emote.getHash()).getHash());
+		}
+		// Subreddit strings are interned
+		assertSame(decoded.get(0).getSubreddit(), decoded.get(1).getSubreddit());
+	}
+
+	@Test
+	public void subredditsMatchGson() throws IOException {
+		final ArrayList<Subreddit> decoded = new ArrayList<>();
+		JsonReader reader = new JsonReader(open("subreddits.json"));
+		try {
+			new EmoteListDecoder().readSubreddits(reader, new EmoteListDecoder.SubredditListener() {
+				@Override
+				public void onSubreddit(Subreddit subreddit) {
+					decoded.add(subreddit);
+				}
+			});
+		} finally {
+			reader.close();
+		}
+
+		List<GsonSubreddit> expected;
+		Reader in = open("subreddits.json");
+		try {
+			expected = new Gson().fromJson(in, new TypeToken<ArrayList<GsonSubreddit>>(){}.getType());
+		} finally {
+			in.close();
+		}
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		assertEquals(expected.size(), decoded.size());
+		for (int i = 0; i < expected.size(); i++) {
+			GsonSubreddit e = expected.get(i);
+			Subreddit d = decoded.get(i);
+			assertEquals(e.name, d.getName());
+			assertEquals(e.name, e.size, d.getSize());
+
+			long added = 0;
+			if (e.added != null) {
+				try {
+					added = format.parse(e.added).getTime();
+				} catch (ParseException ex) {
+					added = 0;
+				}
+			}
+			assertEquals(e.name, added, d.getAddedTime());
+		}
+	}
+
+	private Reader open(String name) throws IOException {
+		return new InputStreamReader(getClass().getResourceAsStream(name), "UTF-8");
+	}
+}
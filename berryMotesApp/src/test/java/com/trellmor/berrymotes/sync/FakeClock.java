@@ -0,0 +1,46 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+/**
+ * Clock for tests, only moves when told to
+ */
+class FakeClock implements SyncScheduler.Clock {
+	private long mNow;
+	private long mElapsed = 0;
+
+	FakeClock(long now) {
+		mNow = now;
+	}
+
+	@Override
+	public synchronized long currentTimeMillis() {
+		return mNow;
+	}
+
+	@Override
+	public synchronized long elapsedRealtime() {
+		return mElapsed;
+	}
+
+	public synchronized void advance(long millis) {
+		mNow += millis;
+		mElapsed += millis;
+	}
+}
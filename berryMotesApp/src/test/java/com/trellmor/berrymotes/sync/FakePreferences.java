@@ -0,0 +1,160 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In memory preferences for tests, edits are applied on commit
+ */
+class FakePreferences implements SharedPreferences {
+	private final HashMap<String, Object> mValues = new HashMap<>();
+
+	@Override
+	public synchronized Map<String, ?> getAll() {
+		return new HashMap<>(mValues);
+	}
+
+	@Override
+	public synchronized String getString(String key, String defValue) {
+		return mValues.containsKey(key) ? (String) mValues.get(key) : defValue;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+		return mValues.containsKey(key) ? (Set<String>) mValues.get(key) : defValues;
+	}
+
+	@Override
+	public synchronized int getInt(String key, int defValue) {
+		return mValues.containsKey(key) ? (Integer) mValues.get(key) : defValue;
+	}
+
+	@Override
+	public synchronized long getLong(String key, long defValue) {
+		return mValues.containsKey(key) ? (Long) mValues.get(key) : defValue;
+	}
+
+	@Override
+	public synchronized float getFloat(String key, float defValue) {
+		return mValues.containsKey(key) ? (Float) mValues.get(key) : defValue;
+	}
+
+	@Override
+	public synchronized boolean getBoolean(String key, boolean defValue) {
+		return mValues.containsKey(key) ? (Boolean) mValues.get(key) : defValue;
+	}
+
+	@Override
+	public synchronized boolean contains(String key) {
+		return mValues.containsKey(key);
+	}
+
+	@Override
+	public Editor edit() {
+		return new FakeEditor();
+	}
+
+	@Override
+	public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+	}
+
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+	}
+
+	private class FakeEditor implements Editor {
+		private final HashMap<String, Object> mChanges = new HashMap<>();
+		private final HashSet<String> mRemoved = new HashSet<>();
+		private boolean mClear = false;
+
+		@Override
+		public Editor putString(String key, String value) {
+			mChanges.put(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putStringSet(String key, Set<String> values) {
+			mChanges.put(key, values);
+			return this;
+		}
+
+		@Override
+		public Editor putInt(String key, int value) {
+			mChanges.put(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putLong(String key, long value) {
+			mChanges.put(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putFloat(String key, float value) {
+			mChanges.put(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putBoolean(String key, boolean value) {
+			mChanges.put(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor remove(String key) {
+			mRemoved.add(key);
+			return this;
+		}
+
+		@Override
+		public Editor clear() {
+			mClear = true;
+			return this;
+		}
+
+		@Override
+		public boolean commit() {
+			synchronized (FakePreferences.this) {
+				if (mClear) {
+					mValues.clear();
+				}
+				for (String key : mRemoved) {
+					mValues.remove(key);
+				}
+				mValues.putAll(mChanges);
+			}
+			return true;
+		}
+
+		@Override
+		public void apply() {
+			commit();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.trellmor.berrymotes.sync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SubredditDiffTest {
+	@Test
+	public void emptyDatabaseAddsAll() {
+		SubredditDiff diff = new SubredditDiff();
+		Subreddit a = new Subreddit("a", 100, 1);
+		Subreddit b = new Subreddit("b", 200, 2);
+		diff.onSubreddit(a);
+		diff.onSubreddit(b);
+
+		assertEquals(2, diff.getAdded().size());
+		assertSame(a, diff.getAdded().get(0));
+		assertSame(b, diff.getAdded().get(1));
+		assertTrue(diff.getChanged().isEmpty());
+		assertTrue(diff.getRemoved().isEmpty());
+	}
+
+	@Test
+	public void unchangedRowsAreNotWritten() {
+		SubredditDiff diff = new SubredditDiff();
+		diff.addExisting(1, "a", 10, 100);
+		diff.addExisting(2, "b", 20, 200);
+		diff.onSubreddit(new Subreddit("a", 100, 10));
+		diff.onSubreddit(new Subreddit("b", 200, 20));
+
+		assertTrue(diff.getAdded().isEmpty());
+		assertTrue(diff.getChanged().isEmpty());
+		assertTrue(diff.getRemoved().isEmpty());
+	}
+
+	@Test
+	public void changedSizeOrDate() {
+		SubredditDiff diff = new SubredditDiff();
+		diff.addExisting(1, "a", 10, 100);
+		diff.addExisting(2, "b", 20, 200);
+		diff.addExisting(3, "c", 30, 300);
+		Subreddit a = new Subreddit("a", 100, 11);
+		Subreddit b = new Subreddit("b", 201, 20);
+		diff.onSubreddit(a);
+		diff.onSubreddit(b);
+		diff.onSubreddit(new Subreddit("c", 300, 30));
+
+		List<SubredditDiff.Change> changed = diff.getChanged();
+		assertEquals(2, changed.size());
+		assertEquals(1, changed.get(0).id);
+		assertSame(a, changed.get(0).subreddit);
+		assertEquals(2, changed.get(1).id);
+		assertSame(b, changed.get(1).subreddit);
+		assertTrue(diff.getAdded().isEmpty());
+		assertTrue(diff.getRemoved().isEmpty());
+	}
+
+	@Test
+	public void unlistedRowsAreRemoved() {
+		SubredditDiff diff = new SubredditDiff();
+		diff.addExisting(1, "a", 10, 100);
+		diff.addExisting(2, "gone", 20, 200);
+		diff.addExisting(3, "also gone", 30, 300);
+		diff.onSubreddit(new Subreddit("a", 100, 10));
+		diff.onSubreddit(new Subreddit("new", 400, 40));
+
+		assertEquals(1, diff.getAdded().size());
+		assertEquals("new", diff.getAdded().get(0).getName());
+
+		ArrayList<String> removed = new ArrayList<>();
+		long ids = 0;
+		for (SubredditDiff.Row row : diff.getRemoved()) {
+			removed.add(row.name);
+			ids += row.id;
+		}
+		assertEquals(2, removed.size());
+		assertTrue(removed.contains("gone"));
+		assertTrue(removed.contains("also gone"));
+		assertEquals(5, ids);
+	}
+
+	@Test
+	public void duplicatesAndUnnamedIgnored() {
+		SubredditDiff diff = new SubredditDiff();
+		diff.addExisting(1, "a", 10, 100);
+		Subreddit first = new Subreddit("b", 200, 20);
+		diff.onSubreddit(first);
+		diff.onSubreddit(new Subreddit("b", 999, 99));
+		diff.onSubreddit(new Subreddit(null, 0, 0));
+		diff.onSubreddit(new Subreddit("a", 100, 10));
+		// A second entry for a stored name must not turn into an insert
+		diff.onSubreddit(new Subreddit("a", 101, 10));
+
+		assertEquals(1, diff.getAdded().size());
+		assertSame(first, diff.getAdded().get(0));
+		assertTrue(diff.getChanged().isEmpty());
+		assertTrue(diff.getRemoved().isEmpty());
+	}
+
+	@Test
+	public void namesAreCaseSensitive() {
+		// The list is the source of truth, a renamed subreddit is replaced
+		SubredditDiff diff = new SubredditDiff();
+		diff.addExisting(1, "MyLittlePony", 10, 100);
+		diff.onSubreddit(new Subreddit("mylittlepony", 100, 10));
+
+		assertEquals(1, diff.getAdded().size());
+		assertEquals(1, diff.getRemoved().size());
+		assertEquals(1, diff.getRemoved().iterator().next().id);
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import android.net.ConnectivityManager;
+
+import com.trellmor.berrymotes.util.BandwidthExhaustedException;
+import com.trellmor.berrymotes.util.Settings;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SyncSchedulerTest {
+	private static final long ONE_HOUR = 60L * 60L * 1000L;
+	// 2016-08-01 10:00 UTC
+	private static final long MORNING = 1470045600000L;
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	private FakeClock mClock;
+	private FakeDevice mDevice;
+	private FakePreferences mPreferences;
+	private BandwidthBudget mBudget;
+	private SyncScheduler mScheduler;
+
+	@Before
+	public void setUp() {
+		mClock = new FakeClock(MORNING);
+		mDevice = new FakeDevice();
+		mPreferences = new FakePreferences();
+		// Synced an hour ago, not overdue
+		mPreferences.edit()
+				.putString(Settings.KEY_SYNC_CONNECTION, Settings.VALUE_SYNC_CONNECTION_ALL)
+				.putLong(Settings.KEY_SYNC_LAST_COMPLETE, MORNING - ONE_HOUR)
+				.commit();
+		mBudget = new BandwidthBudget(mClock, mPreferences, UTC);
+		mScheduler = new SyncScheduler(mClock, mDevice, mPreferences, UTC, mBudget);
+	}
+
+	@Test
+	public void defersWithoutNetwork() {
+		mDevice.connected = false;
+		SyncScheduler.Decision decision = mScheduler.decide(true);
+		assertFalse(decision.run);
+		assertEquals(SyncScheduler.DEFER_CONSTRAINT, decision.delay);
+	}
+
+	@Test
+	public void wifiOnlyAcceptsAnyUnmeteredNetwork() {
+		mPreferences.edit().putString(Settings.KEY_SYNC_CONNECTION, Settings.VALUE_SYNC_CONNECTION_WIFI).commit();
+		mDevice.unmetered = false;
+		assertFalse(mScheduler.decide(true).run);
+
+		mDevice.unmetered = true;
+		assertTrue(mScheduler.decide(true).run);
+	}
+
+	@Test
+	public void defersUntilTheBudgetResets() throws IOException {
+		mPreferences.edit()
+				.putString(Settings.KEY_SYNC_CONNECTION, Settings.VALUE_SYNC_CONNECTION_BUDGET)
+				.putString(Settings.KEY_SYNC_MOBILE_BUDGET, "1")
+				.commit();
+		mDevice.unmetered = false;
+		mBudget.setNetwork(ConnectivityManager.TYPE_MOBILE, true);
+		assertTrue(mScheduler.decide(true).run);
+
+		useBudget();
+		SyncScheduler.Decision decision = mScheduler.decide(true);
+		assertFalse(decision.run);
+		assertEquals(mBudget.getTimeUntilReset() / 1000, decision.delay);
+
+		// Unmetered networks don't count
+		mDevice.unmetered = true;
+		assertTrue(mScheduler.decide(true).run);
+	}
+
+	@Test
+	public void defersOnLowStorage() {
+		mDevice.storageLow = true;
+		assertFalse(mScheduler.decide(true).run);
+	}
+
+	@Test
+	public void manualRunsWhileInUse() {
+		mDevice.idle = false;
+		SyncScheduler.Decision decision = mScheduler.decide(true);
+		assertTrue(decision.run);
+		assertEquals(SyncScheduler.CHUNK_BUDGET, decision.budget);
+	}
+
+	@Test
+	public void noBudgetWhileCharging() {
+		mDevice.charging = true;
+		SyncScheduler.Decision decision = mScheduler.decide(false);
+		assertTrue(decision.run);
+		assertEquals(0, decision.budget);
+	}
+
+	@Test
+	public void defersWhileInUseOnBattery() {
+		mDevice.idle = false;
+		SyncScheduler.Decision decision = mScheduler.decide(false);
+		assertFalse(decision.run);
+		assertEquals(SyncScheduler.DEFER_IDLE, decision.delay);
+	}
+
+	@Test
+	public void overdueRunsWhileInUse() {
+		mDevice.idle = false;
+		// Two periods of the default six hours
+		mClock.advance(12 * ONE_HOUR);
+		assertTrue(mScheduler.decide(false).run);
+	}
+
+	@Test
+	public void defersToABetterWindow() {
+		setScore(10, 0.1f);
+		setScore(11, 0.1f);
+		setScore(12, 0.8f);
+		SyncScheduler.Decision decision = mScheduler.decide(false);
+		assertFalse(decision.run);
+		assertEquals(2 * 60 * 60, decision.delay);
+
+		mClock.advance(2 * ONE_HOUR);
+		assertTrue(mScheduler.decide(false).run);
+	}
+
+	@Test
+	public void runsInAPoorWindowWithoutABetterOne() {
+		for (int hour = 0; hour < 24; hour++) {
+			setScore(hour, 0.1f);
+		}
+		assertTrue(mScheduler.decide(false).run);
+	}
+
+	@Test
+	public void failuresLowerTheScore() {
+		for (int i = 0; i < 5; i++) {
+			mScheduler.recordOutcome(false, false);
+		}
+		setScore(11, 0.8f);
+		assertFalse(mScheduler.decide(false).run);
+
+		for (int i = 0; i < 5; i++) {
+			mScheduler.recordOutcome(true, false);
+		}
+		assertTrue(mScheduler.decide(false).run);
+	}
+
+	@Test
+	public void completeSyncResetsOverdue() {
+		mDevice.idle = false;
+		mClock.advance(12 * ONE_HOUR);
+		mScheduler.recordOutcome(true, false);
+		assertTrue(mScheduler.decide(false).run);
+
+		mScheduler.recordOutcome(true, true);
+		assertFalse(mScheduler.decide(false).run);
+	}
+
+	private void setScore(int hour, float score) {
+		mPreferences.edit().putFloat("sync_window_" + hour, score).commit();
+	}
+
+	private void useBudget() throws IOException {
+		InputStream is = mBudget.wrap(new ByteArrayInputStream(new byte[2 * 1024 * 1024]),
+				BandwidthBudget.PRIORITY_LIST);
+		try {
+			byte[] buffer = new byte[16 * 1024];
+			while (is.read(buffer, 0, buffer.length) != -1) {
+				mClock.advance(1000);
+			}
+			fail("Budget not used up");
+		} catch (BandwidthExhaustedException e) {
+			// Expected
+		} finally {
+			is.close();
+		}
+	}
+
+	private static class FakeDevice implements SyncScheduler.Device {
+		boolean connected = true;
+		boolean unmetered = true;
+		boolean charging = false;
+		boolean idle = true;
+		boolean storageLow = false;
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+
+		@Override
+		public boolean isUnmetered() {
+			return unmetered;
+		}
+
+		@Override
+		public boolean isCharging() {
+			return charging;
+		}
+
+		@Override
+		public boolean isIdle() {
+			return idle;
+		}
+
+		@Override
+		public boolean isStorageLow() {
+			return storageLow;
+		}
+	}
+}
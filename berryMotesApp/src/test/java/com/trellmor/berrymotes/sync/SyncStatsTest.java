@@ -0,0 +1,85 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.trellmor.berrymotes.sync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyncStatsTest {
+	private static final int THREADS = 8;
+	private static final int ITERATIONS = 100000;
+
+	@Test
+	public void concurrentAdds() throws Exception {
+		final SyncStats stats = new SyncStats();
+		final CountDownLatch start = new CountDownLatch(1);
+		final int[] flags = new int[] { SyncStats.TOO_MANY_RETRIES, SyncStats.MORE_RECORDS_TO_GET,
+				SyncStats.DATABASE_ERROR };
+
+		ArrayList<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			final int flag = flags[t % flags.length];
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < ITERATIONS; i++) {
+						stats.increment(SyncStats.INSERTS);
+						stats.add(SyncStats.ENTRIES, 3);
+						stats.add(SyncStats.DELETES, 0);
+						stats.setFlag(flag);
+						stats.delayAtLeast(i);
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals((long) THREADS * ITERATIONS, stats.sum(SyncStats.INSERTS));
+		assertEquals(3L * THREADS * ITERATIONS, stats.sum(SyncStats.ENTRIES));
+		assertEquals(0, stats.sum(SyncStats.DELETES));
+		assertEquals(0, stats.sum(SyncStats.UPDATES));
+		for (int flag : flags) {
+			assertTrue(stats.hasFlag(flag));
+		}
+		assertFalse(stats.hasFlag(SyncStats.TOO_MANY_DELETIONS));
+		assertEquals(ITERATIONS - 1, stats.getDelay());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownCounter() {
+		new SyncStats().increment(9);
+	}
+}
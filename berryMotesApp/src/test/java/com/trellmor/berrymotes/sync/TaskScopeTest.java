@@ -0,0 +1,345 @@
+/*
+ * BerryMotes
+ * Copyright (C) 2016 Daniel Triendl <trellmor@trellmor.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.trellmor.berrymotes.sync;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TaskScopeTest {
+	private static final long TIMEOUT = 5;
+
+	@Test
+	public void joinWaitsForAllTasks() throws Exception {
+		TaskScope scope = TaskScope.open("test", 4);
+		try {
+			final AtomicInteger count = new AtomicInteger();
+			for (int i = 0; i < 100; i++) {
+				assertTrue(scope.fork(new TaskScope.Task() {
+					@Override
+					public void run() throws Exception {
+						Thread.sleep(1);
+						count.incrementAndGet();
+					}
+				}));
+			}
+			scope.join();
+			assertEquals(100, count.get());
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void deeperScopesRunFirst() throws Exception {
+		TaskScope scope = TaskScope.open("test", 1);
+		try {
+			final CountDownLatch release = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(4);
+			final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+			// Keep the only carrier busy until everything is queued
+			block(scope, release);
+			scope.fork(record("root 1", order, done));
+			scope.fork(record("root 2", order, done));
+			TaskScope child = scope.openChild();
+			child.fork(record("child 1", order, done));
+			child.fork(record("child 2", order, done));
+
+			release.countDown();
+			assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+			child.join();
+			child.close();
+			scope.join();
+
+			assertEquals(4, order.size());
+			assertEquals("child 1", order.get(0));
+			assertEquals("child 2", order.get(1));
+			assertEquals("root 1", order.get(2));
+			assertEquals("root 2", order.get(3));
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void joinRunsQueuedTasks() throws Exception {
+		TaskScope scope = TaskScope.open("test", 1);
+		try {
+			final CountDownLatch release = new CountDownLatch(1);
+			block(scope, release);
+
+			// The carrier is blocked, the joining thread has to run the task
+			final Thread[] ranOn = new Thread[1];
+			TaskScope child = scope.openChild();
+			child.fork(new TaskScope.Task() {
+				@Override
+				public void run() {
+					ranOn[0] = Thread.currentThread();
+				}
+			});
+			child.join();
+			child.close();
+			assertSame(Thread.currentThread(), ranOn[0]);
+
+			release.countDown();
+			scope.join();
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void failureStopsQueuedTasks() throws Exception {
+		TaskScope scope = TaskScope.open("test", 1);
+		final IOException failure = new IOException("test");
+		final AtomicBoolean ran = new AtomicBoolean(false);
+		try {
+			final CountDownLatch release = new CountDownLatch(1);
+			block(scope, release);
+
+			// Run by join() one after the other
+			TaskScope child = scope.openChild();
+			child.fork(new TaskScope.Task() {
+				@Override
+				public void run() throws Exception {
+					throw failure;
+				}
+			});
+			child.fork(new TaskScope.Task() {
+				@Override
+				public void run() {
+					ran.set(true);
+				}
+			});
+
+			try {
+				child.join();
+				fail("join() must report the failure");
+			} catch (ExecutionException e) {
+				assertSame(failure, e.getCause());
+			}
+			assertFalse(ran.get());
+			assertFalse(child.fork(new TaskScope.Task() {
+				@Override
+				public void run() {
+					ran.set(true);
+				}
+			}));
+			child.close();
+
+			// The failure stays in the child scope
+			release.countDown();
+			scope.join();
+			assertFalse(ran.get());
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void firstFailureIsReported() throws Exception {
+		TaskScope scope = TaskScope.open("test", 2);
+		try {
+			final RuntimeException first = new IllegalStateException("first");
+			final RuntimeException second = new IllegalStateException("second");
+			final CountDownLatch started = new CountDownLatch(2);
+			final CountDownLatch go = new CountDownLatch(1);
+			final CountDownLatch failed = new CountDownLatch(1);
+
+			// Both tasks are running when the first one fails
+			scope.fork(new TaskScope.Task() {
+				@Override
+				public void run() throws Exception {
+					started.countDown();
+					failed.await();
+					throw second;
+				}
+			});
+			scope.fork(new TaskScope.Task() {
+				@Override
+				public void run() throws Exception {
+					started.countDown();
+					go.await();
+					throw first;
+				}
+			});
+			assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+			// Runs on the carrier of the first failure once it is recorded
+			TaskScope child = scope.openChild();
+			child.fork(new TaskScope.Task() {
+				@Override
+				public void run() {
+					failed.countDown();
+				}
+			});
+			go.countDown();
+
+			try {
+				scope.join();
+				fail("join() must report the failure");
+			} catch (ExecutionException e) {
+				assertSame(first, e.getCause());
+			}
+			child.join();
+			child.close();
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void cancelInterruptsAndDrops() throws Exception {
+		TaskScope scope = TaskScope.open("test", 1);
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicBoolean interrupted = new AtomicBoolean(false);
+		final AtomicBoolean queuedRan = new AtomicBoolean(false);
+		final AtomicBoolean childRan = new AtomicBoolean(false);
+		try {
+			scope.fork(new TaskScope.Task() {
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						Thread.sleep(TimeUnit.SECONDS.toMillis(TIMEOUT * 2));
+					} catch (InterruptedException e) {
+						interrupted.set(true);
+					}
+				}
+			});
+			scope.fork(new TaskScope.Task() {
+				@Override
+				public void run() {
+					queuedRan.set(true);
+				}
+			});
+			TaskScope child = scope.openChild();
+			assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+			// Queued behind the running task
+			child.fork(new TaskScope.Task() {
+				@Override
+				public void run() {
+					childRan.set(true);
+				}
+			});
+
+			scope.cancel();
+			assertTrue(scope.isCancelled());
+			assertTrue(child.isCancelled());
+			assertFalse(scope.fork(new TaskScope.Task() {
+				@Override
+				public void run() {
+					queuedRan.set(true);
+				}
+			}));
+			assertFalse(scope.openChild().fork(new TaskScope.Task() {
+				@Override
+				public void run() {
+					childRan.set(true);
+				}
+			}));
+		} finally {
+			// Waits until the running task has seen the interrupt
+			scope.close();
+		}
+		assertTrue(interrupted.get());
+		assertFalse(queuedRan.get());
+		assertFalse(childRan.get());
+	}
+
+	@Test
+	public void interruptedJoinCancels() throws Exception {
+		final TaskScope scope = TaskScope.open("test", 1);
+		final CountDownLatch started = new CountDownLatch(1);
+		try {
+			scope.fork(new TaskScope.Task() {
+				@Override
+				public void run() throws Exception {
+					started.countDown();
+					Thread.sleep(TimeUnit.SECONDS.toMillis(TIMEOUT * 2));
+				}
+			});
+			assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+
+			final AtomicBoolean joinInterrupted = new AtomicBoolean(false);
+			Thread joiner = new Thread() {
+				@Override
+				public void run() {
+					try {
+						scope.join();
+					} catch (InterruptedException e) {
+						joinInterrupted.set(true);
+					} catch (ExecutionException e) {
+						// Not expected
+					}
+				}
+			};
+			joiner.start();
+			joiner.interrupt();
+			joiner.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+
+			assertTrue(joinInterrupted.get());
+			assertTrue(scope.isCancelled());
+		} finally {
+			scope.close();
+		}
+	}
+
+	/**
+	 * Keep the carrier of a single carrier scope busy until released
+	 */
+	private static void block(TaskScope scope, final CountDownLatch release)
+			throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		scope.fork(new TaskScope.Task() {
+			@Override
+			public void run() throws Exception {
+				started.countDown();
+				release.await();
+			}
+		});
+		assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+	}
+
+	private static TaskScope.Task record(final String name, final List<String> order,
+			final CountDownLatch done) {
+		return new TaskScope.Task() {
+			@Override
+			public void run() {
+				order.add(name);
+				done.countDown();
+			}
+		};
+	}
+}